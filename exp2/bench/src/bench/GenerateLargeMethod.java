@@ -0,0 +1,146 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Writes the source of bench.LargeMethod: one method of a few thousand
+ * statements mixing arithmetic on int locals, branches, loops, array
+ * and field accesses, so that the solvers get a CFG far larger than the
+ * ones of the test classes.  The output is the same on every run.
+ * <p>
+ * USAGE: GenerateLargeMethod output-dir [statements]
+ */
+public class GenerateLargeMethod {
+
+    private static final int LOCALS = 24;
+    private static final int MAX_DEPTH = 4;
+
+    private final Random random = new Random(2018);
+    private final StringBuilder out = new StringBuilder();
+    private int budget;
+    private int loops;
+
+    private GenerateLargeMethod(int statements) {
+        budget = statements;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("USAGE: GenerateLargeMethod output-dir [statements]");
+            return;
+        }
+        int statements = args.length > 1 ? Integer.parseInt(args[1]) : 2500;
+        File dir = new File(args[0], "bench");
+        dir.mkdirs();
+        Writer writer = new FileWriter(new File(dir, "LargeMethod.java"));
+        try {
+            writer.write(new GenerateLargeMethod(statements).generate());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String generate() {
+        out.append("package bench;\n\n");
+        out.append("// Generated by bench.GenerateLargeMethod; do not edit.\n");
+        out.append("public class LargeMethod {\n");
+        out.append("    int field;\n\n");
+        out.append("    static int run(int p0, int p1, int[] a, LargeMethod o) {\n");
+        for (int i = 0; i < LOCALS; i++) {
+            String init = i % 3 == 0 ? "p" + (i / 3 % 2) : String.valueOf(random.nextInt(16));
+            out.append("        int v").append(i).append(" = ").append(init).append(";\n");
+        }
+        while (budget > 0)
+            statement(0);
+        out.append("        return v0");
+        for (int i = 1; i < LOCALS; i++)
+            out.append(" + v").append(i);
+        out.append(";\n    }\n}\n");
+        return out.toString();
+    }
+
+    private void block(int depth) {
+        int n = 1 + random.nextInt(4);
+        for (int i = 0; i < n && budget > 0; i++)
+            statement(depth);
+    }
+
+    private void statement(int depth) {
+        budget--;
+        String indent = indent(depth);
+        String k = local(), i = local(), j = local();
+        switch (random.nextInt(10)) {
+            case 0:
+                line(indent, k + " = " + i + " + " + j + ";");
+                break;
+            case 1:
+                line(indent, k + " = " + i + " - " + random.nextInt(8) + ";");
+                break;
+            case 2:
+                line(indent, k + " = " + random.nextInt(100) + ";");
+                break;
+            case 3:
+                line(indent, k + " = " + i + " * " + j + ";");
+                break;
+            case 4:
+                line(indent, k + " = " + i + ";");
+                break;
+            case 5:
+                if (depth >= MAX_DEPTH) {
+                    line(indent, k + " = -" + i + ";");
+                    break;
+                }
+                line(indent, "if (" + i + " < " + j + ") {");
+                block(depth + 1);
+                line(indent, "} else {");
+                block(depth + 1);
+                line(indent, "}");
+                break;
+            case 6:
+                if (depth >= MAX_DEPTH - 1) {
+                    line(indent, k + " = " + i + " + 1;");
+                    break;
+                }
+                String counter = "i" + loops++;
+                line(indent, "for (int " + counter + " = 0; " + counter + " < (" + i + " & 7); "
+                        + counter + "++) {");
+                block(depth + 1);
+                line(indent, "}");
+                break;
+            case 7:
+                if (random.nextBoolean())
+                    line(indent, "a[" + i + " & 7] = " + j + ";");
+                else
+                    line(indent, k + " = a[" + i + " & 7];");
+                break;
+            case 8:
+                line(indent, "if (o != null) {");
+                line(indent, "    " + k + " = o.field;");
+                line(indent, "    o.field = " + j + ";");
+                line(indent, "}");
+                break;
+            default:
+                line(indent, k + " = -" + i + ";");
+                break;
+        }
+    }
+
+    private String local() {
+        return "v" + random.nextInt(LOCALS);
+    }
+
+    private static String indent(int depth) {
+        StringBuilder sb = new StringBuilder("        ");
+        for (int i = 0; i < depth; i++)
+            sb.append("    ");
+        return sb.toString();
+    }
+
+    private void line(String indent, String text) {
+        out.append(indent).append(text).append('\n');
+    }
+}
@@ -0,0 +1,54 @@
+package bench;
+
+import flow.ParallelDriver;
+import joeq.Class.jq_Class;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Main.Helper;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * What the benchmarks share: loading an input class into joeq and
+ * keeping the analyses quiet while they are measured.
+ */
+class Inputs {
+
+    private static final PrintStream console = System.out;
+    private static final PrintStream discard = new PrintStream(new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    /**
+     * Builds the CFGs of all methods of a class, with their analysis
+     * contexts, in the order Flow.main visits them.
+     * <p>
+     * joeq reads the JDK classes from sun.boot.class.path, and it only
+     * understands class files up to Java 5.  The benchmarks run on a
+     * newer JVM, so the system property joeq.rt names the rt.jar joeq
+     * should read instead.
+     */
+    static synchronized List<ControlFlowGraph> load(String className) {
+        String rt = System.getProperty("joeq.rt");
+        if (rt != null)
+            System.setProperty("sun.boot.class.path", rt);
+        jq_Class clazz = (jq_Class) Helper.load(className);
+        return ParallelDriver.buildCFGs(clazz);
+    }
+
+    /**
+     * Throws away everything printed from now on.
+     */
+    static void mute() {
+        System.setOut(discard);
+    }
+
+    static void unmute() {
+        System.setOut(console);
+    }
+}
@@ -0,0 +1,87 @@
+package bench;
+
+import flow.Flow;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import submit.FindRedundantNullChecks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of every solver with every analysis.  One operation
+ * solves all methods of the input class, each with a new solver and a
+ * new analysis, the way ParallelDriver does; what the analysis prints
+ * is thrown away.
+ * <p>
+ * The CFGs and their AnalysisContexts are built once in the setup, so
+ * the numbers are for the solve alone.  flow.FlowSolver is the solver
+ * exp1 submitted as submit.MySolver.  "NonNull" is the analysis of
+ * submit.FindRedundantNullChecks.
+ * <p>
+ * "ant bench" runs all combinations with JMH's gc profiler, which
+ * adds the allocation rate (gc.alloc.rate.norm, bytes per operation)
+ * next to the throughput; pass JMH options in bench.args to pick some,
+ * e.g. -Dbench.args="-p analysis=flow.Liveness -prof gc".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolverBenchmark {
+
+    @Param({"flow.FlowSolver", "flow.WorklistSolver", "flow.BlockSolver",
+            "flow.InPlaceSolver", "flow.WtoSolver", "flow.IncrementalSolver"})
+    public String solver;
+
+    @Param({"flow.Liveness", "flow.ReachingDefs", "flow.ConstantProp",
+            "flow.Faintness", "NonNull"})
+    public String analysis;
+
+    @Param({"test.QuickSort", "test.SkipList", "test.NullTest", "test.TestTwo",
+            "examples.ExprTest", "bench.LargeMethod"})
+    public String input;
+
+    private List<ControlFlowGraph> cfgs;
+    private Class<?> solverClass, analysisClass;
+
+    @Setup
+    public void setup() throws Exception {
+        cfgs = Inputs.load(input);
+        solverClass = Class.forName(solver);
+        analysisClass = analysis.equals("NonNull") ? null : Class.forName(analysis);
+        Inputs.mute();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Inputs.unmute();
+    }
+
+    @Benchmark
+    public Flow.Analysis solve() throws Exception {
+        Flow.Analysis last = null;
+        for (ControlFlowGraph cfg : cfgs) {
+            Flow.Solver s = (Flow.Solver) solverClass.newInstance();
+            last = analysisClass == null
+                    ? FindRedundantNullChecks.newAnalysis()
+                    : (Flow.Analysis) analysisClass.newInstance();
+            s.registerAnalysis(last);
+            s.visitCFG(cfg);
+        }
+        return last;
+    }
+}
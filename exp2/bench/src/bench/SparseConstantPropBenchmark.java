@@ -0,0 +1,64 @@
+package bench;
+
+import flow.ConstantProp;
+import flow.Flow;
+import flow.SparseConstantProp;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of SparseConstantProp, which only solves ConstantProp and
+ * so does not fit the solver-by-analysis grid of SolverBenchmark.
+ * Compare with SolverBenchmark's results for flow.ConstantProp.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparseConstantPropBenchmark {
+
+    @Param({"test.QuickSort", "test.SkipList", "test.NullTest", "test.TestTwo",
+            "examples.ExprTest", "bench.LargeMethod"})
+    public String input;
+
+    private List<ControlFlowGraph> cfgs;
+
+    @Setup
+    public void setup() {
+        cfgs = Inputs.load(input);
+        Inputs.mute();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Inputs.unmute();
+    }
+
+    @Benchmark
+    public Flow.Analysis solve() {
+        Flow.Analysis last = null;
+        for (ControlFlowGraph cfg : cfgs) {
+            Flow.Solver s = new SparseConstantProp();
+            last = new ConstantProp();
+            s.registerAnalysis(last);
+            s.visitCFG(cfg);
+        }
+        return last;
+    }
+}
@@ -0,0 +1,233 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+/**
+ * Everything the solvers and analyses extract from a CFG before they
+ * start: the quads in visiting order, the quad-level edges, the
+ * registers, and the registers every quad defines and uses.  It is
+ * built once per CFG and shared, so running several analyses on one
+ * method walks the CFG only once.
+ * <p>
+ * Quads are identified by their IDs.  Edges are kept as arrays of
+ * quad IDs, with -1 standing for the entry or the exit.  Registers are
+ * numbered by a RegisterIndex over the parameters of the method and
+ * every register a quad defines or uses.
+ * <p>
+ * The context describes the CFG as it was when the context was built.
+ * Code that changes a CFG must call invalidate() afterwards.
+ */
+public class AnalysisContext {
+
+    private static final Map<ControlFlowGraph, AnalysisContext> cache =
+            Collections.synchronizedMap(new WeakHashMap<ControlFlowGraph, AnalysisContext>());
+
+    /**
+     * Returns the context of the CFG, building it on first use.
+     */
+    public static AnalysisContext of(ControlFlowGraph cfg) {
+        AnalysisContext ctx = cache.get(cfg);
+        if (ctx == null) {
+            ctx = new AnalysisContext(cfg);
+            cache.put(cfg, ctx);
+        }
+        return ctx;
+    }
+
+    /**
+     * Drops the cached context of a CFG that has been changed.
+     */
+    public static void invalidate(ControlFlowGraph cfg) {
+        cache.remove(cfg);
+    }
+
+    private final Quad[] forwardOrder, backwardOrder;
+    private final int maxID;
+    /**
+     * Indexed by quad ID; quadOf also holds the quads that only show
+     * up as the end of an edge.
+     */
+    private final Quad[] quadOf;
+    private final int[][] predecessors, successors;
+    private final int[][] defs, uses;
+    private final RegisterIndex registers;
+    private QuadOrder forward, backward;
+
+    private AnalysisContext(ControlFlowGraph cfg) {
+        List<Quad> quads = new ArrayList<Quad>();
+        List<Collection<Quad>> preds = new ArrayList<Collection<Quad>>();
+        List<Collection<Quad>> succs = new ArrayList<Collection<Quad>>();
+        QuadIterator iter = new QuadIterator(cfg);
+        int max = 0, maxSeen = 0;
+        while (iter.hasNext()) {
+            Quad q = iter.next();
+            quads.add(q);
+            preds.add(iter.predecessors1());
+            succs.add(iter.successors1());
+            max = Math.max(max, q.getID());
+            for (Quad p : preds.get(preds.size() - 1))
+                if (p != null)
+                    maxSeen = Math.max(maxSeen, p.getID());
+            for (Quad s : succs.get(succs.size() - 1))
+                if (s != null)
+                    maxSeen = Math.max(maxSeen, s.getID());
+        }
+        forwardOrder = quads.toArray(new Quad[quads.size()]);
+        maxID = max + 1;
+
+        List<Quad> reversed = new ArrayList<Quad>();
+        iter = new QuadIterator(cfg, false);
+        while (iter.hasPrevious())
+            reversed.add(iter.previous());
+        backwardOrder = reversed.toArray(new Quad[reversed.size()]);
+
+        int size = Math.max(maxID, maxSeen + 1);
+        quadOf = new Quad[size];
+        predecessors = new int[size][];
+        successors = new int[size][];
+        for (int i = 0; i < forwardOrder.length; i++) {
+            Quad q = forwardOrder[i];
+            quadOf[q.getID()] = q;
+            predecessors[q.getID()] = toIDs(preds.get(i));
+            successors[q.getID()] = toIDs(succs.get(i));
+        }
+
+        SortedSet<String> names = new TreeSet<String>();
+        int numargs = cfg.getMethod().getParamTypes().length;
+        for (int i = 0; i < numargs; i++)
+            names.add("R" + i);
+        for (Quad q : forwardOrder) {
+            for (RegisterOperand def : q.getDefinedRegisters())
+                names.add(def.getRegister().toString());
+            for (RegisterOperand use : q.getUsedRegisters())
+                names.add(use.getRegister().toString());
+        }
+        registers = new RegisterIndex(names);
+
+        defs = new int[maxID][];
+        uses = new int[maxID][];
+        for (Quad q : forwardOrder) {
+            defs[q.getID()] = toIndices(q.getDefinedRegisters());
+            uses[q.getID()] = toIndices(q.getUsedRegisters());
+        }
+    }
+
+    private int[] toIDs(Collection<Quad> quads) {
+        int[] ids = new int[quads.size()];
+        int i = 0;
+        for (Quad q : quads) {
+            if (q != null)
+                quadOf[q.getID()] = q;
+            ids[i++] = q == null ? -1 : q.getID();
+        }
+        return ids;
+    }
+
+    private int[] toIndices(List<RegisterOperand> operands) {
+        int[] result = new int[operands.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = registers.indexOf(operands.get(i).getRegister());
+        return result;
+    }
+
+    /**
+     * Returns the quads in the order QuadIterator visits them going
+     * forward.  The array is shared; do not modify it.
+     */
+    public Quad[] getQuads() {
+        return forwardOrder;
+    }
+
+    /**
+     * Returns the quads in the order QuadIterator visits them going
+     * backward.  The array is shared; do not modify it.
+     */
+    public Quad[] getQuadsBackward() {
+        return backwardOrder;
+    }
+
+    /**
+     * Returns one more than the largest ID of a visited quad.
+     */
+    public int getMaxID() {
+        return maxID;
+    }
+
+    /**
+     * Returns the quad with the given ID, or null if there is none.
+     */
+    public Quad getQuad(int id) {
+        return id >= 0 && id < quadOf.length ? quadOf[id] : null;
+    }
+
+    /**
+     * Returns true if QuadIterator visits the quad with the given ID.
+     */
+    public boolean isVisited(int id) {
+        return id >= 0 && id < predecessors.length && predecessors[id] != null;
+    }
+
+    /**
+     * Returns the IDs of the predecessors of a visited quad, as
+     * QuadIterator.predecessors1() reports them; -1 is the entry.
+     */
+    public int[] getPredecessors(int id) {
+        return predecessors[id];
+    }
+
+    /**
+     * Returns the IDs of the successors of a visited quad, as
+     * QuadIterator.successors1() reports them; -1 is the exit.
+     */
+    public int[] getSuccessors(int id) {
+        return successors[id];
+    }
+
+    public RegisterIndex getRegisters() {
+        return registers;
+    }
+
+    /**
+     * Returns the indices of the registers a visited quad defines, in
+     * the order of q.getDefinedRegisters().
+     */
+    public int[] getDefs(Quad q) {
+        return defs[q.getID()];
+    }
+
+    /**
+     * Returns the indices of the registers a visited quad uses, in the
+     * order of q.getUsedRegisters().
+     */
+    public int[] getUses(Quad q) {
+        return uses[q.getID()];
+    }
+
+    /**
+     * Returns the quads numbered for a solver working in the given
+     * direction.
+     */
+    synchronized QuadOrder getOrder(boolean forward) {
+        if (forward) {
+            if (this.forward == null)
+                this.forward = new QuadOrder(this, true);
+            return this.forward;
+        } else {
+            if (backward == null)
+                backward = new QuadOrder(this, false);
+            return backward;
+        }
+    }
+}
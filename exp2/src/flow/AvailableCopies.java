@@ -0,0 +1,250 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.Operator;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+import java.util.BitSet;
+
+/**
+ * Available copies: the register-to-register Move quads "a = b" such
+ * that on every path to a point the copy was executed and neither a
+ * nor b was defined since, so a and b hold the same value there.
+ * <p>
+ * Forward, meet is intersection.  A value is the set of IDs of the
+ * copies available, printed like ReachingDefs: "[ID0, ID1, ...]".
+ */
+public class AvailableCopies implements Flow.TransferAnalysis, Flow.ViewAnalysis {
+
+    private AnalysisContext ctx;
+    /* IDs of every copy in the CFG: Top */
+    private BitSet universalSet;
+    /**
+     * By register: the IDs of the copies reading or writing it, i.e.
+     * killed by a definition of it.
+     */
+    private BitSet[] killedBy;
+    /* By register: the IDs of the copies into it */
+    private BitSet[] copiesInto;
+    /**
+     * By quad ID: the register a copy reads, kept apart from the quad
+     * so that rewriting the copy itself changes nothing.
+     */
+    private Register[] sourceOf;
+    private CopySet[] in, out;
+    private CopySet entry, exit;
+
+    public void preprocess(ControlFlowGraph cfg) {
+        System.out.println("Method: " + cfg.getMethod().getName().toString());
+        initialize(cfg);
+        System.out.println("Initialization completed.");
+    }
+
+    /**
+     * Sets up the values of a new CFG, as preprocess does, without
+     * printing anything.
+     */
+    protected void initialize(ControlFlowGraph cfg) {
+        ctx = AnalysisContext.of(cfg);
+        int max = ctx.getMaxID();
+        int registers = ctx.getRegisters().size();
+        universalSet = new BitSet(max);
+        killedBy = new BitSet[registers];
+        copiesInto = new BitSet[registers];
+        sourceOf = new Register[max];
+        for (int i = 0; i < registers; i++) {
+            killedBy[i] = new BitSet(max);
+            copiesInto[i] = new BitSet(max);
+        }
+        for (Quad q : ctx.getQuads()) {
+            if (!isCopy(q))
+                continue;
+            int id = q.getID();
+            int dest = ctx.getDefs(q)[0], src = ctx.getUses(q)[0];
+            universalSet.set(id);
+            killedBy[dest].set(id);
+            killedBy[src].set(id);
+            copiesInto[dest].set(id);
+            sourceOf[id] = ((RegisterOperand) Operator.Move.getSrc(q)).getRegister();
+        }
+
+        in = new CopySet[max];
+        out = new CopySet[max];
+        for (Quad q : ctx.getQuads()) {
+            in[q.getID()] = new CopySet();
+            out[q.getID()] = new CopySet();
+        }
+        // nothing is available on entry
+        entry = new CopySet();
+        entry.setToBottom();
+        exit = new CopySet();
+    }
+
+    /**
+     * Returns true if q copies one register into another.
+     */
+    public static boolean isCopy(Quad q) {
+        if (!(q.getOperator() instanceof Operator.Move))
+            return false;
+        if (!(Operator.Move.getSrc(q) instanceof RegisterOperand))
+            return false;
+        Register src = ((RegisterOperand) Operator.Move.getSrc(q)).getRegister();
+        return src != Operator.Move.getDest(q).getRegister();
+    }
+
+    /**
+     * Returns the register an available copy in val copied into r, or
+     * null if there is none.
+     */
+    public Register getCopySource(Flow.DataflowObject val, Register r) {
+        int i = ctx.getRegisters().indexOf(r);
+        if (i < 0)
+            return null;
+        BitSet set = (BitSet) ((CopySet) val).set.clone();
+        set.and(copiesInto[i]);
+        int id = set.nextSetBit(0);
+        return id < 0 ? null : sourceOf[id];
+    }
+
+    public void postprocess(ControlFlowGraph cfg) {
+        System.out.println("entry: " + entry.toString());
+        for (int i = 0; i < in.length; i++) {
+            if (in[i] != null) {
+                System.out.println(i + " in:  " + in[i].toString());
+                System.out.println(i + " out: " + out[i].toString());
+            }
+        }
+        System.out.println("exit: " + exit.toString());
+    }
+
+    public boolean isForward() {
+        return true;
+    }
+
+    public Flow.DataflowObject getEntry() {
+        Flow.DataflowObject result = newTempVar();
+        result.copy(entry);
+        return result;
+    }
+
+    public void setEntry(Flow.DataflowObject value) {
+        entry.copy(value);
+    }
+
+    public Flow.DataflowObject getExit() {
+        Flow.DataflowObject result = newTempVar();
+        result.copy(exit);
+        return result;
+    }
+
+    public void setExit(Flow.DataflowObject value) {
+        exit.copy(value);
+    }
+
+    public Flow.DataflowObject getIn(Quad q) {
+        Flow.DataflowObject result = newTempVar();
+        result.copy(in[q.getID()]);
+        return result;
+    }
+
+    public Flow.DataflowObject getOut(Quad q) {
+        Flow.DataflowObject result = newTempVar();
+        result.copy(out[q.getID()]);
+        return result;
+    }
+
+    public void setIn(Quad q, Flow.DataflowObject value) {
+        in[q.getID()].copy(value);
+    }
+
+    public void setOut(Quad q, Flow.DataflowObject value) {
+        out[q.getID()].copy(value);
+    }
+
+    public Flow.DataflowObject viewEntry() {
+        return entry;
+    }
+
+    public Flow.DataflowObject viewExit() {
+        return exit;
+    }
+
+    public Flow.DataflowObject viewIn(Quad q) {
+        return in[q.getID()];
+    }
+
+    public Flow.DataflowObject viewOut(Quad q) {
+        return out[q.getID()];
+    }
+
+    public Flow.DataflowObject newTempVar() {
+        return new CopySet();
+    }
+
+    public void processQuad(Quad q) {
+        out[q.getID()].copy(in[q.getID()]);
+        transfer(q, out[q.getID()]);
+    }
+
+    /**
+     * Kills the copies reading or writing a register q defines, then
+     * adds q if it is a copy itself.
+     */
+    public void transfer(Quad q, Flow.DataflowObject val) {
+        BitSet set = ((CopySet) val).set;
+        for (int def : ctx.getDefs(q))
+            set.andNot(killedBy[def]);
+        if (universalSet.get(q.getID()))
+            set.set(q.getID());
+    }
+
+    public class CopySet implements Flow.DataflowObject {
+        private final BitSet set;
+
+        /* Top: every copy */
+        public CopySet() {
+            set = (BitSet) universalSet.clone();
+        }
+
+        public void setToTop() {
+            set.clear();
+            set.or(universalSet);
+        }
+
+        public void setToBottom() {
+            set.clear();
+        }
+
+        public void meetWith(Flow.DataflowObject o) {
+            set.and(((CopySet) o).set);
+        }
+
+        public void copy(Flow.DataflowObject o) {
+            set.clear();
+            set.or(((CopySet) o).set);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CopySet && set.equals(((CopySet) o).set);
+        }
+
+        @Override
+        public int hashCode() {
+            return set.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                if (sb.length() > 1)
+                    sb.append(", ");
+                sb.append(i);
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
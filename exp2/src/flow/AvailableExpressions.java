@@ -0,0 +1,284 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Operand;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.Operator;
+import joeq.Compiler.Quad.Quad;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Available expressions: the Binary expressions that were computed on
+ * every path to a point, with none of their operands defined since,
+ * so that computing them again there gives the value they had then.
+ * <p>
+ * Forward, meet is intersection.  The universe is built in preprocess
+ * from the Binary quads of the CFG: two quads compute the same
+ * expression when they have the same operator and the same operands
+ * (in either order for commutative operators).  Expressions are
+ * numbered in the order of their text, and a value prints as the
+ * sorted list of those texts, e.g. "[ADD_I(R1, 1), SUB_I(R2, R1)]".
+ */
+public class AvailableExpressions implements Flow.TransferAnalysis, Flow.ViewAnalysis {
+
+    private AnalysisContext ctx;
+    /* The text of every expression, by number */
+    private String[] expressions;
+    /* By quad ID: the expression the quad computes, or -1 */
+    private int[] expressionOf;
+    /* By register: the expressions reading it */
+    private BitSet[] killedBy;
+    /* Top: every expression */
+    private BitSet universalSet;
+    private ExprSet[] in, out;
+    private ExprSet entry, exit;
+
+    public void preprocess(ControlFlowGraph cfg) {
+        System.out.println("Method: " + cfg.getMethod().getName().toString());
+        initialize(cfg);
+        System.out.println("Initialization completed.");
+    }
+
+    /**
+     * Sets up the values of a new CFG, as preprocess does, without
+     * printing anything.
+     */
+    protected void initialize(ControlFlowGraph cfg) {
+        ctx = AnalysisContext.of(cfg);
+        int max = ctx.getMaxID();
+
+        // number the expressions
+        SortedSet<String> texts = new TreeSet<String>();
+        for (Quad q : ctx.getQuads()) {
+            String text = textOf(q);
+            if (text != null)
+                texts.add(text);
+        }
+        expressions = texts.toArray(new String[texts.size()]);
+        universalSet = new BitSet(expressions.length);
+        universalSet.set(0, expressions.length);
+
+        expressionOf = new int[max];
+        killedBy = new BitSet[ctx.getRegisters().size()];
+        for (int i = 0; i < killedBy.length; i++)
+            killedBy[i] = new BitSet(expressions.length);
+        for (Quad q : ctx.getQuads()) {
+            String text = textOf(q);
+            int e = text == null ? -1 : Arrays.binarySearch(expressions, text);
+            expressionOf[q.getID()] = e;
+            if (e >= 0)
+                for (int use : ctx.getUses(q))
+                    killedBy[use].set(e);
+        }
+
+        in = new ExprSet[max];
+        out = new ExprSet[max];
+        for (Quad q : ctx.getQuads()) {
+            in[q.getID()] = new ExprSet();
+            out[q.getID()] = new ExprSet();
+        }
+        // nothing is available on entry
+        entry = new ExprSet();
+        entry.setToBottom();
+        exit = new ExprSet();
+    }
+
+    /**
+     * Returns the text of the expression q computes, or null if q is
+     * not a Binary quad.
+     */
+    private static String textOf(Quad q) {
+        if (!(q.getOperator() instanceof Operator.Binary))
+            return null;
+        String src1 = textOf(Operator.Binary.getSrc1(q));
+        String src2 = textOf(Operator.Binary.getSrc2(q));
+        if (isCommutative(q.getOperator()) && src1.compareTo(src2) > 0) {
+            String t = src1;
+            src1 = src2;
+            src2 = t;
+        }
+        return q.getOperator().toString() + "(" + src1 + ", " + src2 + ")";
+    }
+
+    private static String textOf(Operand op) {
+        if (op instanceof RegisterOperand)
+            return ((RegisterOperand) op).getRegister().toString();
+        if (op instanceof Operand.IConstOperand)
+            return String.valueOf(((Operand.IConstOperand) op).getValue());
+        return op.toString();
+    }
+
+    private static boolean isCommutative(Operator op) {
+        return op == Operator.Binary.ADD_I.INSTANCE || op == Operator.Binary.MUL_I.INSTANCE
+                || op == Operator.Binary.AND_I.INSTANCE || op == Operator.Binary.OR_I.INSTANCE
+                || op == Operator.Binary.XOR_I.INSTANCE || op == Operator.Binary.ADD_L.INSTANCE
+                || op == Operator.Binary.MUL_L.INSTANCE || op == Operator.Binary.AND_L.INSTANCE
+                || op == Operator.Binary.OR_L.INSTANCE || op == Operator.Binary.XOR_L.INSTANCE;
+    }
+
+    /**
+     * Returns the number of the expression q computes, or -1 if it
+     * computes none.
+     */
+    public int getExpression(Quad q) {
+        return expressionOf[q.getID()];
+    }
+
+    /**
+     * Returns the number of expressions in the CFG.
+     */
+    public int getNumExpressions() {
+        return expressions.length;
+    }
+
+    /**
+     * Returns true if expression e is available in val.
+     */
+    public boolean isAvailable(Flow.DataflowObject val, int e) {
+        return ((ExprSet) val).set.get(e);
+    }
+
+    public void postprocess(ControlFlowGraph cfg) {
+        System.out.println("entry: " + entry.toString());
+        for (int i = 0; i < in.length; i++) {
+            if (in[i] != null) {
+                System.out.println(i + " in:  " + in[i].toString());
+                System.out.println(i + " out: " + out[i].toString());
+            }
+        }
+        System.out.println("exit: " + exit.toString());
+    }
+
+    public boolean isForward() {
+        return true;
+    }
+
+    public Flow.DataflowObject getEntry() {
+        Flow.DataflowObject result = newTempVar();
+        result.copy(entry);
+        return result;
+    }
+
+    public void setEntry(Flow.DataflowObject value) {
+        entry.copy(value);
+    }
+
+    public Flow.DataflowObject getExit() {
+        Flow.DataflowObject result = newTempVar();
+        result.copy(exit);
+        return result;
+    }
+
+    public void setExit(Flow.DataflowObject value) {
+        exit.copy(value);
+    }
+
+    public Flow.DataflowObject getIn(Quad q) {
+        Flow.DataflowObject result = newTempVar();
+        result.copy(in[q.getID()]);
+        return result;
+    }
+
+    public Flow.DataflowObject getOut(Quad q) {
+        Flow.DataflowObject result = newTempVar();
+        result.copy(out[q.getID()]);
+        return result;
+    }
+
+    public void setIn(Quad q, Flow.DataflowObject value) {
+        in[q.getID()].copy(value);
+    }
+
+    public void setOut(Quad q, Flow.DataflowObject value) {
+        out[q.getID()].copy(value);
+    }
+
+    public Flow.DataflowObject viewEntry() {
+        return entry;
+    }
+
+    public Flow.DataflowObject viewExit() {
+        return exit;
+    }
+
+    public Flow.DataflowObject viewIn(Quad q) {
+        return in[q.getID()];
+    }
+
+    public Flow.DataflowObject viewOut(Quad q) {
+        return out[q.getID()];
+    }
+
+    public Flow.DataflowObject newTempVar() {
+        return new ExprSet();
+    }
+
+    public void processQuad(Quad q) {
+        out[q.getID()].copy(in[q.getID()]);
+        transfer(q, out[q.getID()]);
+    }
+
+    /**
+     * Adds the expression q computes, then kills the expressions
+     * reading a register q defines (which may be that one).
+     */
+    public void transfer(Quad q, Flow.DataflowObject val) {
+        BitSet set = ((ExprSet) val).set;
+        int e = expressionOf[q.getID()];
+        if (e >= 0)
+            set.set(e);
+        for (int def : ctx.getDefs(q))
+            set.andNot(killedBy[def]);
+    }
+
+    public class ExprSet implements Flow.DataflowObject {
+        private final BitSet set;
+
+        /* Top: every expression */
+        public ExprSet() {
+            set = (BitSet) universalSet.clone();
+        }
+
+        public void setToTop() {
+            set.or(universalSet);
+        }
+
+        public void setToBottom() {
+            set.clear();
+        }
+
+        public void meetWith(Flow.DataflowObject o) {
+            set.and(((ExprSet) o).set);
+        }
+
+        public void copy(Flow.DataflowObject o) {
+            set.clear();
+            set.or(((ExprSet) o).set);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ExprSet && set.equals(((ExprSet) o).set);
+        }
+
+        @Override
+        public int hashCode() {
+            return set.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int e = set.nextSetBit(0); e >= 0; e = set.nextSetBit(e + 1)) {
+                if (sb.length() > 1)
+                    sb.append(", ");
+                sb.append(expressions[e]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
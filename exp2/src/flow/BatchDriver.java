@@ -0,0 +1,221 @@
+package flow;
+
+import joeq.Class.PrimordialClassLoader;
+import joeq.Class.jq_Class;
+import joeq.Class.jq_Method;
+import joeq.Class.jq_Type;
+import joeq.Compiler.Quad.CodeCache;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+import joeq.Compiler.Quad.QuadIterator;
+import joeq.Main.Helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Runs a solver and an analysis over every class of jars and
+ * directories, e.g. lib/rt.jar, one class at a time.
+ * <p>
+ * Results are printed as each method is done.  Once a method is done,
+ * its CFG is dropped from joeq's code cache and its AnalysisContext is
+ * invalidated, and every method gets a fresh solver and analysis, so
+ * no CFG or dataflow array outlives its method and the heap does not
+ * grow with the number of classes.  Only joeq's own table of loaded
+ * classes (their members and bytecode, some 20 KB per class of rt.jar)
+ * stays: joeq cannot unload a class that later classes may refer to.
+ * <p>
+ * A method or class that fails is reported and counted, and the run
+ * goes on with the next one.  At the end the number of classes,
+ * methods and quads, the time and the failures are printed.
+ */
+public class BatchDriver {
+
+    public static void main(String[] args) {
+        String usage = "USAGE: BatchDriver [-cache dir] solver-class analysis-class (jar|dir)+";
+        File cacheDir = null;
+        int first = 0;
+        if (args.length > 1 && args[0].equals("-cache")) {
+            cacheDir = new File(args[1]);
+            first = 2;
+        }
+        if (args.length - first < 3) {
+            System.out.println(usage);
+            return;
+        }
+
+        Class<?> solverClass, analysisClass;
+        try {
+            solverClass = Class.forName(args[first]);
+            analysisClass = Class.forName(args[first + 1]);
+            // fail now rather than on every method
+            ParallelDriver.newFactory(solverClass, analysisClass).newSolver();
+        } catch (Exception ex) {
+            System.out.println("ERROR: Could not load solver and analysis: " + ex.toString());
+            System.out.println(usage);
+            return;
+        }
+
+        BatchDriver driver = new BatchDriver(ParallelDriver.newFactory(solverClass, analysisClass));
+        if (cacheDir != null)
+            driver.setCache(new ResultCache(cacheDir, solverClass, analysisClass, ""));
+        for (int i = first + 2; i < args.length; i++) {
+            try {
+                driver.run(new File(args[i]));
+            } catch (IOException ex) {
+                System.out.println("ERROR: Could not read '" + args[i] + "': " + ex.toString());
+            }
+        }
+        System.out.println(driver.summary());
+    }
+
+    private final ParallelDriver.SolverFactory factory;
+    private ResultCache cache;
+    private int classes, methods, failures;
+    private long quads, time;
+
+    public BatchDriver(ParallelDriver.SolverFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Serves methods found in the cache from it and caches the results
+     * of the others.  null turns it off.
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Analyzes every class in a jar file or under a directory, in the
+     * order of their names.
+     */
+    public void run(File path) throws IOException {
+        long start = System.nanoTime();
+        PrimordialClassLoader.loader.addToClasspath(path.getPath());
+        for (String name : classNames(path))
+            analyzeClass(name);
+        time += System.nanoTime() - start;
+    }
+
+    /**
+     * Returns e.g. "Analyzed 12 classes, 80 methods, 3410 quads in
+     * 1.52 s, 1 failures".
+     */
+    public String summary() {
+        return "Analyzed " + classes + " classes, " + methods + " methods, " + quads + " quads in "
+                + String.format("%.2f", time / 1e9) + " s, " + failures + " failures";
+    }
+
+    public int getClasses() {
+        return classes;
+    }
+
+    public int getMethods() {
+        return methods;
+    }
+
+    public long getQuads() {
+        return quads;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    private void analyzeClass(String name) {
+        jq_Class clazz;
+        List<jq_Method> methods = new ArrayList<jq_Method>();
+        try {
+            jq_Type type = Helper.load(name);
+            if (!(type instanceof jq_Class))
+                return;
+            clazz = (jq_Class) type;
+            // the order of Helper.runPass
+            for (jq_Method m : clazz.getDeclaredStaticMethods())
+                methods.add(m);
+            for (jq_Method m : clazz.getDeclaredInstanceMethods())
+                methods.add(m);
+        } catch (Throwable t) {
+            failures++;
+            System.out.println("ERROR: Could not load class '" + name + "': " + t.toString());
+            return;
+        }
+
+        classes++;
+        System.out.println("Now analyzing " + name);
+        for (jq_Method m : methods) {
+            if (m.getBytecode() == null)
+                continue;
+            analyzeMethod(m);
+        }
+        System.out.flush();
+    }
+
+    private void analyzeMethod(jq_Method m) {
+        ControlFlowGraph cfg = null;
+        try {
+            cfg = CodeCache.getCode(m);
+            methods++;
+            for (QuadIterator it = new QuadIterator(cfg); it.hasNext(); it.next())
+                quads++;
+            ControlFlowGraphVisitor solver = factory.newSolver();
+            (cache == null ? solver : cache.wrap(solver)).visitCFG(cfg);
+        } catch (Throwable t) {
+            failures++;
+            System.out.println("ERROR: Could not analyze " + m.getDeclaringClass().getName() + "."
+                    + m.getNameAndDesc() + ": " + t.toString());
+        } finally {
+            if (cfg != null) {
+                AnalysisContext.invalidate(cfg);
+                CodeCache.free(cfg);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the classes in a jar or under a directory,
+     * sorted.
+     */
+    static List<String> classNames(File path) throws IOException {
+        List<String> names = new ArrayList<String>();
+        if (path.isDirectory()) {
+            addClassNames(path, "", names);
+        } else {
+            JarFile jar = new JarFile(path);
+            try {
+                for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+                    String entry = e.nextElement().getName();
+                    if (entry.endsWith(".class"))
+                        names.add(toClassName(entry));
+                }
+            } finally {
+                jar.close();
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static void addClassNames(File dir, String prefix, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            if (f.isDirectory())
+                addClassNames(f, prefix + f.getName() + "/", names);
+            else if (f.getName().endsWith(".class"))
+                names.add(toClassName(prefix + f.getName()));
+        }
+    }
+
+    private static String toClassName(String entry) {
+        return entry.substring(0, entry.length() - ".class".length()).replace('/', '.');
+    }
+}
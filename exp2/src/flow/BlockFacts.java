@@ -0,0 +1,108 @@
+package flow;
+
+import joeq.Compiler.Quad.Quad;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The converged values of an analysis, kept at block heads only.
+ * <p>
+ * BlockSolver hands one to a Flow.CheckpointAnalysis instead of
+ * filling in the IN and OUT values of every quad.  The value at any
+ * other point is rebuilt when it is asked for, by pushing the value at
+ * the head of its block through the transfer functions of the quads
+ * before it.  The values of the last few blocks rebuilt are kept, so
+ * going through a block quad by quad, as postprocess does, replays
+ * each block once.
+ * <p>
+ * The values returned belong to this object and must not be changed.
+ */
+public class BlockFacts {
+
+    /* Number of blocks whose rebuilt values are kept */
+    private static final int CACHED_BLOCKS = 8;
+
+    private final Flow.TransferAnalysis analysis;
+    private final boolean forward;
+    private final QuadOrder quads;
+    private final int[] start, blockOf;
+    private final Flow.DataflowObject[] head;
+
+    /**
+     * Rebuilt values by block, least recently used first.  values[k]
+     * flows into the k-th quad of the block in visiting order and
+     * values[k + 1] out of it.
+     */
+    private final Map<Integer, Flow.DataflowObject[]> cache =
+            new LinkedHashMap<Integer, Flow.DataflowObject[]>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Integer, Flow.DataflowObject[]> eldest) {
+                    return size() > CACHED_BLOCKS;
+                }
+            };
+    private int replays;
+
+    /**
+     * @param start block b covers quads.order[start[b]] up to (not
+     *              including) quads.order[start[b + 1]]
+     * @param head  the converged value flowing into every block
+     */
+    BlockFacts(Flow.TransferAnalysis analysis, QuadOrder quads, int[] start, int[] blockOf,
+               Flow.DataflowObject[] head) {
+        this.analysis = analysis;
+        this.forward = analysis.isForward();
+        this.quads = quads;
+        this.start = start;
+        this.blockOf = blockOf;
+        this.head = head;
+    }
+
+    /**
+     * Returns the IN value of q, or null if the solver did not visit
+     * it.
+     */
+    public Flow.DataflowObject getIn(Quad q) {
+        return valueAt(q, forward);
+    }
+
+    /**
+     * Returns the OUT value of q, or null if the solver did not visit
+     * it.
+     */
+    public Flow.DataflowObject getOut(Quad q) {
+        return valueAt(q, !forward);
+    }
+
+    /**
+     * Returns the number of times a block was replayed so far.
+     */
+    public int getReplays() {
+        return replays;
+    }
+
+    private Flow.DataflowObject valueAt(Quad q, boolean before) {
+        int i = quads.indexOf(q);
+        if (i < 0)
+            return null;
+        int b = blockOf[i];
+        Flow.DataflowObject[] values = cache.get(b);
+        if (values == null) {
+            values = replay(b);
+            cache.put(b, values);
+        }
+        int k = i - start[b];
+        return before ? values[k] : values[k + 1];
+    }
+
+    private Flow.DataflowObject[] replay(int b) {
+        replays++;
+        Flow.DataflowObject[] values = new Flow.DataflowObject[start[b + 1] - start[b] + 1];
+        values[0] = head[b];
+        for (int k = 1; k < values.length; k++) {
+            values[k] = analysis.newTempVar();
+            values[k].copy(values[k - 1]);
+            analysis.transfer(quads.order[start[b] + k - 1], values[k]);
+        }
+        return values;
+    }
+}
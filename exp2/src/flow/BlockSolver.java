@@ -0,0 +1,266 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Basic-block implementation of the Flow.Solver interface.
+ * <p>
+ * The quads are cut into straight-line blocks: runs in which every
+ * quad but the first has exactly one upstream quad and every quad but
+ * the last has exactly one downstream quad.  Without exception
+ * handlers these are joeq's BasicBlocks; a quad that may branch to a
+ * handler or to the exit ends its block.  During the fixpoint only the
+ * values at block boundaries are kept, meets happen at block heads and
+ * changes are detected at block tails.  Afterwards every block is
+ * walked once more to fill in the per-quad values for postprocess,
+ * unless checkpoints are on and the analysis is a
+ * Flow.CheckpointAnalysis: then it is given the values at block heads
+ * only, and rebuilds the others when they are read.
+ * <p>
+ * Analyses implementing Flow.TransferAnalysis are pushed through a
+ * block without touching their per-quad values; other analyses go
+ * through setIn/processQuad/getOut.
+ * <p>
+ * If the values are Flow.VersionedObjects, the value at a block head
+ * is not computed from Top again on later visits: the upstream tails
+ * are met into it, and when that does not change its version, the
+ * block is skipped.  equals is never called then; a block that was
+ * walked is taken as changed.
+ */
+public class BlockSolver implements Flow.InstrumentedSolver {
+
+    protected Flow.Analysis analysis;
+    private SolverStats stats;
+    private boolean checkpoints;
+
+    private QuadOrder quads;
+    /**
+     * Block b covers quads.order[start[b]] up to (not including)
+     * quads.order[start[b + 1]].
+     */
+    private int[] start;
+    /**
+     * blockOf[i] is the block holding quads.order[i].
+     */
+    private int[] blockOf;
+
+    /**
+     * Sets the analysis.  When visitCFG is called, it will
+     * perform this analysis on a given CFG.
+     *
+     * @param analyzer The analysis to run
+     */
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        this.analysis = analyzer;
+    }
+
+    /**
+     * Makes a Flow.CheckpointAnalysis keep its values at block heads
+     * only.
+     */
+    public void setCheckpoints(boolean checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Returns the statistics of the last visitCFG.
+     */
+    public SolverStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Runs the solver over a given control flow graph.  Prior
+     * to calling this, an analysis must be registered using
+     * registerAnalysis
+     *
+     * @param cfg The control flow graph to analyze.
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        stats = new SolverStats(cfg, this, analysis);
+        // this needs to come first.
+        analysis.preprocess(cfg);
+        stats.preprocessDone();
+
+        boolean forward = analysis.isForward();
+        quads = AnalysisContext.of(cfg).getOrder(forward);
+        buildBlocks();
+        int nblocks = start.length - 1;
+
+        // values flowing into and out of every block
+        Flow.DataflowObject[] head = new Flow.DataflowObject[nblocks];
+        Flow.DataflowObject[] tail = new Flow.DataflowObject[nblocks];
+        for (int b = 0; b < nblocks; b++) {
+            head[b] = analysis.newTempVar();
+            tail[b] = analysis.newTempVar();
+        }
+
+        boolean versioned = nblocks > 0 && head[0] instanceof Flow.VersionedObject;
+        boolean[] visited = new boolean[nblocks];
+        Flow.DataflowObject val = analysis.newTempVar();
+
+        BitSet pending = new BitSet(nblocks);
+        pending.set(0, nblocks);
+        int last = Integer.MAX_VALUE;
+        for (int b = pending.nextSetBit(0); b >= 0; b = pending.nextSetBit(0)) {
+            pending.clear(b);
+            if (b <= last)
+                stats.iterations++;
+            last = b;
+            boolean changed;
+            if (versioned && visited[b]) {
+                int version = ((Flow.VersionedObject) head[b]).getVersion();
+                meetInto(head[b], b, tail, forward);
+                if (((Flow.VersionedObject) head[b]).getVersion() == version)
+                    continue;
+                val.copy(head[b]);
+                for (int i = start[b]; i < start[b + 1]; i++)
+                    transfer(quads.order[i], val, forward);
+                tail[b].copy(val);
+                changed = true;
+            } else {
+                visited[b] = true;
+                head[b].setToTop();
+                meetInto(head[b], b, tail, forward);
+                val.copy(head[b]);
+                for (int i = start[b]; i < start[b + 1]; i++)
+                    transfer(quads.order[i], val, forward);
+                stats.equals++;
+                changed = !val.equals(tail[b]);
+                if (changed)
+                    tail[b].copy(val);
+            }
+            if (changed) {
+                for (int s : quads.downstream[start[b + 1] - 1])
+                    pending.set(blockOf[s]);
+            }
+        }
+
+        if (checkpoints && analysis instanceof Flow.CheckpointAnalysis) {
+            Flow.CheckpointAnalysis a = (Flow.CheckpointAnalysis) analysis;
+            a.useBlockFacts(new BlockFacts(a, quads, start, blockOf, head));
+        } else {
+            fillIn(head, forward);
+        }
+
+        Flow.DataflowObject temp = analysis.newTempVar();
+        stats.meets += quads.boundary.length;
+        for (int i : quads.boundary) {
+            if (forward)
+                temp.meetWith(analysis.getOut(quads.order[i]));
+            else
+                temp.meetWith(analysis.getIn(quads.order[i]));
+        }
+        if (forward)
+            analysis.setExit(temp);
+        else
+            analysis.setEntry(temp);
+
+        quads = null;
+        start = null;
+        blockOf = null;
+        stats.solveDone();
+
+        // this needs to come last.
+        analysis.postprocess(cfg);
+        stats.postprocessDone();
+    }
+
+    /**
+     * Sets the per-quad values by walking every block from its head.
+     */
+    private void fillIn(Flow.DataflowObject[] head, boolean forward) {
+        for (int b = 0; b < head.length; b++) {
+            Flow.DataflowObject val = head[b];
+            for (int i = start[b]; i < start[b + 1]; i++) {
+                Quad quad = quads.order[i];
+                if (forward) {
+                    analysis.setIn(quad, val);
+                    analysis.processQuad(quad);
+                    val = analysis.getOut(quad);
+                } else {
+                    analysis.setOut(quad, val);
+                    analysis.processQuad(quad);
+                    val = analysis.getIn(quad);
+                }
+                stats.transfers++;
+            }
+        }
+    }
+
+    /**
+     * Cuts quads.order into straight-line blocks.  A block always
+     * continues with the next quad in visiting order, so it is enough
+     * to find where each one starts.
+     */
+    private void buildBlocks() {
+        int n = quads.size();
+        boolean[] leaving = new boolean[n];
+        for (int i : quads.boundary)
+            leaving[i] = true;
+
+        List<Integer> starts = new ArrayList<Integer>();
+        blockOf = new int[n];
+        for (int i = 0; i < n; i++) {
+            boolean continues = i > 0
+                    && quads.upstream[i].length == 1
+                    && quads.upstream[i][0] == quads.order[i - 1]
+                    && quads.downstream[i - 1].length == 1
+                    && !leaving[i - 1];
+            if (!continues)
+                starts.add(i);
+            blockOf[i] = starts.size() - 1;
+        }
+        starts.add(n);
+        start = QuadOrder.toArray(starts);
+    }
+
+    /**
+     * Meets the values of all blocks flowing into block b into temp.
+     */
+    private void meetInto(Flow.DataflowObject temp, int b, Flow.DataflowObject[] tail, boolean direction) {
+        stats.meets += quads.upstream[start[b]].length;
+        for (Quad P : quads.upstream[start[b]]) {
+            if (P == null) {
+                if (direction)
+                    temp.meetWith(analysis.getEntry());
+                else
+                    temp.meetWith(analysis.getExit());
+                continue;
+            }
+            int i = quads.indexOf(P);
+            if (i >= 0 && i == start[blockOf[i] + 1] - 1) {
+                temp.meetWith(tail[blockOf[i]]);
+            } else {
+                // not visited by the solver; its value never changes
+                if (direction)
+                    temp.meetWith(analysis.getOut(P));
+                else
+                    temp.meetWith(analysis.getIn(P));
+            }
+        }
+    }
+
+    /**
+     * Pushes val through one quad in the specified direction.
+     */
+    private void transfer(Quad quad, Flow.DataflowObject val, boolean direction) {
+        stats.transfers++;
+        if (analysis instanceof Flow.TransferAnalysis) {
+            ((Flow.TransferAnalysis) analysis).transfer(quad, val);
+        } else if (direction) {
+            analysis.setIn(quad, val);
+            analysis.processQuad(quad);
+            val.copy(analysis.getOut(quad));
+        } else {
+            analysis.setOut(quad, val);
+            analysis.processQuad(quad);
+            val.copy(analysis.getIn(quad));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package flow;
+
+/**
+ * BlockSolver with checkpoints on, so that it can be named on the
+ * command line: analyses implementing Flow.CheckpointAnalysis keep
+ * their converged values at block heads only and rebuild the value at
+ * any other quad when it is read (see BlockFacts).
+ */
+public class CheckpointSolver extends BlockSolver {
+
+    public CheckpointSolver() {
+        setCheckpoints(true);
+    }
+}
@@ -3,60 +3,49 @@ package flow;
 import joeq.Compiler.Quad.*;
 import joeq.Compiler.Quad.Operand.IConstOperand;
 import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.RegisterFactory.Register;
 import joeq.Main.Helper;
 
 import java.util.*;
 
-public class ConstantProp implements Flow.Analysis {
+public class ConstantProp implements Flow.TransferAnalysis, Flow.ViewAnalysis, Flow.IncrementalAnalysis {
 
     private ConstantPropTable[] in, out;
     private ConstantPropTable entry, exit;
+    /* the variables we need to track, numbered */
+    private RegisterIndex registers;
     private TransferFunction transferfn = new TransferFunction();
 
     public void preprocess(ControlFlowGraph cfg) {
         System.out.println("Method: " + cfg.getMethod().getName().toString());
-        /* Generate initial conditions. */
-        QuadIterator qit = new QuadIterator(cfg);
-        int max = 0;
-        while (qit.hasNext()) {
-            int x = qit.next().getID();
-            if (x > max) max = x;
-        }
-        max += 1;
-        in = new ConstantPropTable[max];
-        out = new ConstantPropTable[max];
-        qit = new QuadIterator(cfg);
-
-        ConstantPropTable.reset();
-
-        /* Arguments are always there. */
-        int numargs = cfg.getMethod().getParamTypes().length;
-        for (int i = 0; i < numargs; i++) {
-            ConstantPropTable.register("R" + i);
-        }
-
-        while (qit.hasNext()) {
-            Quad q = qit.next();
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                ConstantPropTable.register(def.getRegister().toString());
-            }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                ConstantPropTable.register(use.getRegister().toString());
-            }
-        }
+        initialize(cfg);
+        System.out.println("Initialization completed.");
+    }
 
-        entry = new ConstantPropTable();
-        exit = new ConstantPropTable();
-        transferfn.val = new ConstantPropTable();
+    /**
+     * Sets up the values of a new CFG, as preprocess does, without
+     * printing anything; for subclasses that use the result instead of
+     * printing it.
+     */
+    protected void initialize(ControlFlowGraph cfg) {
+        /* Generate initial conditions. */
+        AnalysisContext ctx = AnalysisContext.of(cfg);
+        in = new ConstantPropTable[ctx.getMaxID()];
+        out = new ConstantPropTable[ctx.getMaxID()];
+
+        /* The arguments and every register defined or used. */
+        registers = ctx.getRegisters();
+        entry = new ConstantPropTable(registers);
+        exit = new ConstantPropTable(registers);
         for (int i = 0; i < in.length; i++) {
-            in[i] = new ConstantPropTable();
-            out[i] = new ConstantPropTable();
+            in[i] = new ConstantPropTable(registers);
+            out[i] = new ConstantPropTable(registers);
         }
 
+        int numargs = cfg.getMethod().getParamTypes().length;
         for (int i = 0; i < numargs; i++) {
             entry.setNAC("R" + i);
         }
-        System.out.println("Initialization completed.");
     }
 
     public void postprocess(ControlFlowGraph cfg) {
@@ -115,19 +104,63 @@ public class ConstantProp implements Flow.Analysis {
         out[q.getID()].copy(value);
     }
 
+    public Flow.DataflowObject viewEntry() {
+        return entry;
+    }
+
+    public Flow.DataflowObject viewExit() {
+        return exit;
+    }
+
+    public Flow.DataflowObject viewIn(Quad q) {
+        return in[q.getID()];
+    }
+
+    public Flow.DataflowObject viewOut(Quad q) {
+        return out[q.getID()];
+    }
+
+    /**
+     * Follows a change of the CFG: tables are renumbered for the new
+     * registers, new quads start at Top and quads that are gone are
+     * reset.  The transfer function of a quad only depends on the quad.
+     */
+    public Collection<Quad> update(ControlFlowGraph cfg) {
+        AnalysisContext ctx = AnalysisContext.of(cfg);
+        registers = ctx.getRegisters();
+        ConstantPropTable[] oldIn = in, oldOut = out;
+        in = new ConstantPropTable[ctx.getMaxID()];
+        out = new ConstantPropTable[ctx.getMaxID()];
+        for (int id = 0; id < in.length; id++) {
+            boolean kept = id < oldIn.length && ctx.isVisited(id);
+            in[id] = kept ? oldIn[id].renumber(registers) : new ConstantPropTable(registers);
+            out[id] = kept ? oldOut[id].renumber(registers) : new ConstantPropTable(registers);
+        }
+        entry = entry.renumber(registers);
+        exit = exit.renumber(registers);
+        return Collections.emptyList();
+    }
+
     public Flow.DataflowObject newTempVar() {
-        return new ConstantPropTable();
+        return new ConstantPropTable(registers);
     }
 
     public void processQuad(Quad q) {
-        transferfn.val.copy(in[q.getID()]);
+        out[q.getID()].copy(in[q.getID()]);
+        transfer(q, out[q.getID()]);
+    }
+
+    public void transfer(Quad q, Flow.DataflowObject val) {
+        transferfn.val = (ConstantPropTable) val;
         Helper.runPass(q, transferfn);
-        out[q.getID()].copy(transferfn.val);
     }
 
     /* Actually perform the transfer operation on the relevant
      * quad. */
 
+    /* The states of a SingleCP */
+    static final byte UNDEF = 0, CONST = 1, NAC = 2;
+
     public static class SingleCP implements Flow.DataflowObject {
         private int state;
         private int constant;
@@ -233,91 +266,231 @@ public class ConstantProp implements Flow.Analysis {
         }
     }
 
-    public static class ConstantPropTable implements Flow.DataflowObject {
-        /* 'core' is used to keep track of which variables we need to
-         * track */
-        private static Set<String> core = new HashSet<String>();
-        private SortedMap<String, SingleCP> map;
-
-        public ConstantPropTable() {
-            map = new TreeMap<String, SingleCP>();
-            for (String key : core) {
-                map.put(key, new SingleCP());
-            }
-        }
+    /**
+     * Lattice values of all registers of the CFG, packed into two
+     * arrays indexed by RegisterIndex: the SingleCP state of every
+     * register, and its constant where the state says there is one.
+     */
+    public static class ConstantPropTable implements Flow.VersionedObject {
+        private final RegisterIndex registers;
+        private final byte[] state;
+        private final int[] constant;
+        private int version;
 
-        public static void reset() {
-            core.clear();
-        }
-
-        public static void register(String key) {
-            core.add(key);
+        public ConstantPropTable(RegisterIndex registers) {
+            this.registers = registers;
+            state = new byte[registers.size()];
+            constant = new int[registers.size()];
         }
 
         public void setToTop() {
-            for (SingleCP lattice : map.values()) {
-                lattice.setToTop();
-            }
+            Arrays.fill(state, UNDEF);
         }
 
         public void setToBottom() {
-            for (SingleCP lattice : map.values()) {
-                lattice.setToBottom();
-            }
+            Arrays.fill(state, NAC);
         }
 
         public void meetWith(Flow.DataflowObject o) {
             ConstantPropTable a = (ConstantPropTable) o;
-            for (Map.Entry<String, SingleCP> e : a.map.entrySet()) {
-                SingleCP mine = map.get(e.getKey());
-                mine.meetWith(e.getValue());
+            boolean changed = false;
+            for (int i = 0; i < state.length; i++) {
+                byte s = a.state[i];
+                if (s == UNDEF || state[i] == NAC)
+                    continue;
+                if (state[i] == UNDEF) {
+                    state[i] = s;
+                    constant[i] = a.constant[i];
+                    changed = true;
+                } else if (s == NAC || constant[i] != a.constant[i]) {
+                    state[i] = NAC;
+                    changed = true;
+                }
             }
+            if (changed)
+                version++;
+        }
+
+        public int getVersion() {
+            return version;
         }
 
         public void copy(Flow.DataflowObject o) {
             ConstantPropTable a = (ConstantPropTable) o;
-            for (Map.Entry<String, SingleCP> e : a.map.entrySet()) {
-                SingleCP mine = map.get(e.getKey());
-                mine.copy(e.getValue());
+            System.arraycopy(a.state, 0, state, 0, state.length);
+            System.arraycopy(a.constant, 0, constant, 0, constant.length);
+        }
+
+        /**
+         * Returns this table numbered by another index.  Registers the
+         * other index does not have are dropped; registers only it has
+         * are undef.
+         */
+        ConstantPropTable renumber(RegisterIndex other) {
+            if (registers.sameAs(other))
+                return this;
+            ConstantPropTable result = new ConstantPropTable(other);
+            for (int i = 0; i < state.length; i++) {
+                int j = other.indexOf(registers.nameOf(i));
+                if (j >= 0) {
+                    result.state[j] = state[i];
+                    result.constant[j] = constant[i];
+                }
             }
+            return result;
         }
 
+        /**
+         * Same format as a SortedMap from register names to SingleCP.
+         */
         @Override
         public String toString() {
-            return map.toString();
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < state.length; i++) {
+                if (i > 0)
+                    sb.append(", ");
+                sb.append(registers.nameOf(i)).append('=');
+                switch (state[i]) {
+                    case UNDEF:
+                        sb.append("undef");
+                        break;
+                    case CONST:
+                        sb.append(constant[i]);
+                        break;
+                    default:
+                        sb.append("NAC");
+                        break;
+                }
+            }
+            return sb.append('}').toString();
         }
 
+        /**
+         * Returns a copy of the lattice value of a register.
+         */
         public SingleCP get(String key) {
-            return map.get(key);
+            int i = registers.indexOf(key);
+            SingleCP result = new SingleCP();
+            result.state = state[i];
+            result.constant = constant[i];
+            return result;
         }
 
         @Override
         public boolean equals(Object o) {
             if (o instanceof ConstantPropTable) {
-                return map.equals(((ConstantPropTable) o).map);
+                ConstantPropTable a = (ConstantPropTable) o;
+                if (a.state.length != state.length)
+                    return false;
+                for (int i = 0; i < state.length; i++) {
+                    if (state[i] != a.state[i])
+                        return false;
+                    if (state[i] == CONST && constant[i] != a.constant[i])
+                        return false;
+                }
+                return true;
             }
             return false;
         }
 
         @Override
         public int hashCode() {
-            return map.hashCode();
+            int h = 0;
+            for (int i = 0; i < state.length; i++)
+                h = 31 * h + (state[i] == CONST ? constant[i] : state[i]);
+            return h;
+        }
+
+        public boolean isUndef(String key) {
+            return state[registers.indexOf(key)] == UNDEF;
+        }
+
+        public boolean isConst(String key) {
+            return state[registers.indexOf(key)] == CONST;
+        }
+
+        public boolean isNAC(String key) {
+            return state[registers.indexOf(key)] == NAC;
+        }
+
+        public int getConst(String key) {
+            return constant[registers.indexOf(key)];
         }
 
         public void setUndef(String key) {
-            get(key).setUndef();
+            setUndef(registers.indexOf(key));
         }
 
         public void setConst(String key, int val) {
-            get(key).setConst(val);
+            setConst(registers.indexOf(key), val);
         }
 
         public void setNAC(String key) {
-            get(key).setNAC();
+            setNAC(registers.indexOf(key));
         }
 
         public void transfer(String key, String src) {
-            get(key).copy(get(src));
+            int i = registers.indexOf(key), j = registers.indexOf(src);
+            state[i] = state[j];
+            constant[i] = constant[j];
+        }
+
+        /* The same, keyed by Register */
+
+        public boolean isUndef(Register key) {
+            return state[registers.indexOf(key)] == UNDEF;
+        }
+
+        public boolean isConst(Register key) {
+            return state[registers.indexOf(key)] == CONST;
+        }
+
+        public boolean isNAC(Register key) {
+            return state[registers.indexOf(key)] == NAC;
+        }
+
+        public int getConst(Register key) {
+            return constant[registers.indexOf(key)];
+        }
+
+        public void setUndef(Register key) {
+            setUndef(registers.indexOf(key));
+        }
+
+        public void setConst(Register key, int val) {
+            setConst(registers.indexOf(key), val);
+        }
+
+        public void setNAC(Register key) {
+            setNAC(registers.indexOf(key));
+        }
+
+        /* The same, by register index, for SparseConstantProp */
+
+        byte stateOf(int i) {
+            return state[i];
+        }
+
+        int constantOf(int i) {
+            return constant[i];
+        }
+
+        void set(int i, byte s, int c) {
+            state[i] = s;
+            constant[i] = c;
+        }
+
+        private void setUndef(int i) {
+            state[i] = UNDEF;
+        }
+
+        private void setConst(int i, int val) {
+            state[i] = CONST;
+            constant[i] = val;
+        }
+
+        private void setNAC(int i) {
+            state[i] = NAC;
         }
     }
 
@@ -328,7 +501,7 @@ public class ConstantProp implements Flow.Analysis {
         @Override
         public void visitMove(Quad q) {
             Operand op = Operator.Move.getSrc(q);
-            String key = Operator.Move.getDest(q).getRegister().toString();
+            Register key = Operator.Move.getDest(q).getRegister();
 
             if (isUndef(op)) {
                 val.setUndef(key);
@@ -343,7 +516,7 @@ public class ConstantProp implements Flow.Analysis {
         public void visitBinary(Quad q) {
             Operand op1 = Operator.Binary.getSrc1(q);
             Operand op2 = Operator.Binary.getSrc2(q);
-            String key = Operator.Binary.getDest(q).getRegister().toString();
+            Register key = Operator.Binary.getDest(q).getRegister();
             Operator opr = q.getOperator();
 
             if (opr == Operator.Binary.ADD_I.INSTANCE) {
@@ -362,7 +535,7 @@ public class ConstantProp implements Flow.Analysis {
         @Override
         public void visitUnary(Quad q) {
             Operand op = Operator.Unary.getSrc(q);
-            String key = Operator.Unary.getDest(q).getRegister().toString();
+            Register key = Operator.Unary.getDest(q).getRegister();
             Operator opr = q.getOperator();
 
             if (opr == Operator.Unary.NEG_I.INSTANCE) {
@@ -380,43 +553,43 @@ public class ConstantProp implements Flow.Analysis {
 
         @Override
         public void visitALoad(Quad q) {
-            String key = Operator.ALoad.getDest(q).getRegister().toString();
+            Register key = Operator.ALoad.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitALength(Quad q) {
-            String key = Operator.ALength.getDest(q).getRegister().toString();
+            Register key = Operator.ALength.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitGetstatic(Quad q) {
-            String key = Operator.Getstatic.getDest(q).getRegister().toString();
+            Register key = Operator.Getstatic.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitGetfield(Quad q) {
-            String key = Operator.Getfield.getDest(q).getRegister().toString();
+            Register key = Operator.Getfield.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitInstanceOf(Quad q) {
-            String key = Operator.InstanceOf.getDest(q).getRegister().toString();
+            Register key = Operator.InstanceOf.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitNew(Quad q) {
-            String key = Operator.New.getDest(q).getRegister().toString();
+            Register key = Operator.New.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitNewArray(Quad q) {
-            String key = Operator.NewArray.getDest(q).getRegister().toString();
+            Register key = Operator.NewArray.getDest(q).getRegister();
             val.setNAC(key);
         }
 
@@ -424,37 +597,37 @@ public class ConstantProp implements Flow.Analysis {
         public void visitInvoke(Quad q) {
             RegisterOperand op = Operator.Invoke.getDest(q);
             if (op != null) {
-                String key = op.getRegister().toString();
+                Register key = op.getRegister();
                 val.setNAC(key);
             }
         }
 
         @Override
         public void visitJsr(Quad q) {
-            String key = Operator.Jsr.getDest(q).getRegister().toString();
+            Register key = Operator.Jsr.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitCheckCast(Quad q) {
-            String key = Operator.CheckCast.getDest(q).getRegister().toString();
+            Register key = Operator.CheckCast.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         private boolean isUndef(Operand op) {
             return (op instanceof RegisterOperand &&
-                    val.get(((RegisterOperand) op).getRegister().toString()).isUndef());
+                    val.isUndef(((RegisterOperand) op).getRegister()));
         }
 
         private boolean isConst(Operand op) {
             return (op instanceof IConstOperand) ||
                     (op instanceof RegisterOperand &&
-                            val.get(((RegisterOperand) op).getRegister().toString()).isConst());
+                            val.isConst(((RegisterOperand) op).getRegister()));
         }
 
         private boolean isNAC(Operand op) {
             return (op instanceof RegisterOperand &&
-                    val.get(((RegisterOperand) op).getRegister().toString()).isNAC());
+                    val.isNAC(((RegisterOperand) op).getRegister()));
         }
 
         private int getConst(Operand op) {
@@ -462,9 +635,9 @@ public class ConstantProp implements Flow.Analysis {
                 return ((IConstOperand) op).getValue();
             }
             if (op instanceof RegisterOperand) {
-                SingleCP o = val.get(((RegisterOperand) op).getRegister().toString());
-                if (o.state == 1)
-                    return o.getConst();
+                Register key = ((RegisterOperand) op).getRegister();
+                if (val.isConst(key))
+                    return val.getConst(key);
             }
             throw new IllegalArgumentException("Tried to getConst a non-Const!");
         }
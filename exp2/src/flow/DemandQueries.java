@@ -0,0 +1,272 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Answers single questions about liveness and reaching definitions at
+ * one point of a CFG, without solving the whole method.
+ * <p>
+ * A question is about one register.  To decide whether it is live
+ * after a quad, only the quads reachable downstream without passing
+ * through a use or a definition of it are visited.  To find the
+ * definitions reaching a quad, only the quads upstream of it are
+ * visited, up to the definitions.  The quads visited form a region
+ * that no other quad flows into, so the region is solved on its own
+ * and the answer for every quad in it is kept.  Later questions about
+ * the same register at any of those quads are answered from the kept
+ * values.
+ * <p>
+ * The answers are the ones flow.Liveness and flow.ReachingDefs give
+ * for the register, with the same edges (AnalysisContext) and the same
+ * boundary values.  Like AnalysisContext, a DemandQueries describes
+ * the CFG as it was when it was made.
+ */
+public class DemandQueries {
+
+    private final AnalysisContext ctx;
+    private final RegisterIndex registers;
+    /**
+     * By register, then by quad ID: whether the register is live at
+     * the exit of the quad, if known.
+     */
+    private final BitSet[] liveOutKnown, liveOut;
+    /**
+     * By register, then by quad ID: the IDs of the definitions of the
+     * register reaching the entry of the quad, null if not known.
+     */
+    private final BitSet[][] reachingIn;
+    private long explored;
+
+    public DemandQueries(ControlFlowGraph cfg) {
+        ctx = AnalysisContext.of(cfg);
+        registers = ctx.getRegisters();
+        liveOutKnown = new BitSet[registers.size()];
+        liveOut = new BitSet[registers.size()];
+        reachingIn = new BitSet[registers.size()][];
+    }
+
+    /**
+     * Returns true if the register is live at the entry of q.
+     */
+    public boolean isLiveIn(Quad q, String register) {
+        int r = registers.indexOf(register);
+        if (r < 0 || !ctx.isVisited(q.getID()))
+            return false;
+        if (contains(ctx.getUses(q), r))
+            return true;
+        if (contains(ctx.getDefs(q), r))
+            return false;
+        return isLiveOut(q.getID(), r);
+    }
+
+    /**
+     * Returns true if the register is live at the exit of q.
+     */
+    public boolean isLiveOut(Quad q, String register) {
+        int r = registers.indexOf(register);
+        if (r < 0 || !ctx.isVisited(q.getID()))
+            return false;
+        return isLiveOut(q.getID(), r);
+    }
+
+    /**
+     * Returns the IDs of the quads defining the register whose
+     * definitions reach the entry of q.
+     */
+    public BitSet getReachingDefsIn(Quad q, String register) {
+        int r = registers.indexOf(register);
+        if (r < 0 || !ctx.isVisited(q.getID()))
+            return new BitSet();
+        return (BitSet) reachingIn(q.getID(), r).clone();
+    }
+
+    /**
+     * Returns the IDs of the quads defining the register whose
+     * definitions reach the exit of q.
+     */
+    public BitSet getReachingDefsOut(Quad q, String register) {
+        int r = registers.indexOf(register);
+        BitSet result = new BitSet();
+        if (r < 0 || !ctx.isVisited(q.getID()))
+            return result;
+        int id = q.getID();
+        if (contains(ctx.getDefs(q), r)) {
+            result.set(id);
+        } else {
+            BitSet in = reachingIn(id, r);
+            for (int d = in.nextSetBit(0); d >= 0; d = in.nextSetBit(d + 1))
+                if (!kills(id, d))
+                    result.set(d);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of quads visited to answer the questions so
+     * far; questions answered from kept values visit none.
+     */
+    public long getExplored() {
+        return explored;
+    }
+
+    private boolean isLiveOut(int id, int r) {
+        if (liveOutKnown[r] == null) {
+            liveOutKnown[r] = new BitSet(ctx.getMaxID());
+            liveOut[r] = new BitSet(ctx.getMaxID());
+        }
+        if (!liveOutKnown[r].get(id))
+            solveLiveness(id, r);
+        return liveOut[r].get(id);
+    }
+
+    /**
+     * Finds the region of quads whose live-out value for r depends on
+     * that of id, and decides all of them.  A successor using r makes
+     * r live; one defining it (and not using it) hides what follows;
+     * any other successor passes its own live-out value on.
+     */
+    private void solveLiveness(int start, int r) {
+        List<Integer> region = new ArrayList<Integer>();
+        BitSet inRegion = new BitSet();
+        // quads of the region with a successor that uses r
+        List<Integer> live = new ArrayList<Integer>();
+        // for every quad of the region, the quads of the region whose
+        // live-out value flows into its own
+        List<List<Integer>> into = new ArrayList<List<Integer>>();
+        int[] slot = new int[ctx.getMaxID()];
+
+        region.add(start);
+        inRegion.set(start);
+        into.add(new ArrayList<Integer>());
+        slot[start] = 0;
+        for (int k = 0; k < region.size(); k++) {
+            int x = region.get(k);
+            explored++;
+            for (int s : ctx.getSuccessors(x)) {
+                if (s < 0 || !ctx.isVisited(s))
+                    continue;
+                if (contains(ctx.getUses(ctx.getQuad(s)), r)) {
+                    live.add(x);
+                } else if (contains(ctx.getDefs(ctx.getQuad(s)), r)) {
+                    continue;
+                } else if (liveOutKnown[r].get(s)) {
+                    if (liveOut[r].get(s))
+                        live.add(x);
+                } else {
+                    if (!inRegion.get(s)) {
+                        inRegion.set(s);
+                        slot[s] = region.size();
+                        region.add(s);
+                        into.add(new ArrayList<Integer>());
+                    }
+                    into.get(slot[s]).add(x);
+                }
+            }
+        }
+
+        // r is live out of exactly the quads that reach a use
+        while (!live.isEmpty()) {
+            int x = live.remove(live.size() - 1);
+            if (liveOut[r].get(x))
+                continue;
+            liveOut[r].set(x);
+            live.addAll(into.get(slot[x]));
+        }
+        for (int x : region)
+            liveOutKnown[r].set(x);
+    }
+
+    private BitSet reachingIn(int id, int r) {
+        if (reachingIn[r] == null)
+            reachingIn[r] = new BitSet[ctx.getMaxID()];
+        if (reachingIn[r][id] == null)
+            solveReachingDefs(id, r);
+        return reachingIn[r][id];
+    }
+
+    /**
+     * Finds the region of quads whose reaching definitions of r at
+     * entry depend on those of id, and computes all of them.  A
+     * predecessor defining r passes on only itself; any other passes
+     * on what reaches its entry, except the definitions it kills.
+     */
+    private void solveReachingDefs(int start, int r) {
+        List<Integer> region = new ArrayList<Integer>();
+        BitSet inRegion = new BitSet();
+        // for every quad of the region, the quads of the region its
+        // exit value flows into
+        List<List<Integer>> onto = new ArrayList<List<Integer>>();
+        int[] slot = new int[ctx.getMaxID()];
+        BitSet[] result = new BitSet[ctx.getMaxID()];
+
+        region.add(start);
+        inRegion.set(start);
+        onto.add(new ArrayList<Integer>());
+        result[start] = new BitSet();
+        for (int k = 0; k < region.size(); k++) {
+            int x = region.get(k);
+            explored++;
+            for (int p : ctx.getPredecessors(x)) {
+                if (p < 0 || !ctx.isVisited(p))
+                    continue;
+                if (contains(ctx.getDefs(ctx.getQuad(p)), r)) {
+                    result[x].set(p);
+                } else if (reachingIn[r][p] != null) {
+                    BitSet known = reachingIn[r][p];
+                    for (int d = known.nextSetBit(0); d >= 0; d = known.nextSetBit(d + 1))
+                        if (!kills(p, d))
+                            result[x].set(d);
+                } else {
+                    if (!inRegion.get(p)) {
+                        inRegion.set(p);
+                        slot[p] = region.size();
+                        region.add(p);
+                        onto.add(new ArrayList<Integer>());
+                        result[p] = new BitSet();
+                    }
+                    onto.get(slot[p]).add(x);
+                }
+            }
+        }
+
+        // push every definition downstream until it is killed
+        List<Integer> work = new ArrayList<Integer>(region);
+        while (!work.isEmpty()) {
+            int x = work.remove(work.size() - 1);
+            for (int y : onto.get(slot[x])) {
+                int before = result[y].cardinality();
+                for (int d = result[x].nextSetBit(0); d >= 0; d = result[x].nextSetBit(d + 1))
+                    if (!kills(x, d))
+                        result[y].set(d);
+                if (result[y].cardinality() != before)
+                    work.add(y);
+            }
+        }
+        for (int x : region)
+            reachingIn[r][x] = result[x];
+    }
+
+    /**
+     * Returns true if quad p kills definition d, i.e. defines one of
+     * the registers d defines.
+     */
+    private boolean kills(int p, int d) {
+        int[] defs = ctx.getDefs(ctx.getQuad(d));
+        for (int def : ctx.getDefs(ctx.getQuad(p)))
+            if (contains(defs, def))
+                return true;
+        return false;
+    }
+
+    private static boolean contains(int[] indices, int r) {
+        for (int i : indices)
+            if (i == r)
+                return true;
+        return false;
+    }
+}
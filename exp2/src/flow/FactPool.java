@@ -0,0 +1,93 @@
+package flow;
+
+import java.util.HashMap;
+
+/**
+ * The distinct values of one analysis of one method, one shared
+ * instance each.
+ * <p>
+ * An interned value belongs to its pool and must never change again,
+ * so any number of quads can point at it: the arrays of IN and OUT
+ * values then take one reference per quad and one set per distinct
+ * value, instead of one set per quad.  Two values interned by the same
+ * pool are equal exactly when they are the same instance, and their
+ * equals can say so without looking at their contents.
+ * <p>
+ * Solvers that change values in place (ViewAnalysis) need values of
+ * their own, so an analysis hands out a private copy of an interned
+ * value when one is viewed, and interns it again once the CFG is
+ * solved.
+ * <p>
+ * The pool counts the references the caller holds, so a value is
+ * dropped once nothing points at it.
+ */
+class FactPool<T extends FactPool.Fact<T>> {
+
+    /**
+     * A dataflow value that can be interned.
+     */
+    interface Fact<T> extends Flow.DataflowObject {
+        /**
+         * Returns the pool that interned this value, or null if it is
+         * still a private value that may change.
+         */
+        FactPool<?> getPool();
+
+        /**
+         * Returns a copy of this value belonging to pool.  The copy
+         * must cache its hash code: it never changes.
+         */
+        T internedCopy(FactPool<?> pool);
+    }
+
+    /* Each interned value, with the number of references to it */
+    private final HashMap<T, Entry<T>> facts = new HashMap<T, Entry<T>>();
+
+    /**
+     * Returns the instance of this pool equal to value, counting one
+     * more reference to it.  A value is copied if the pool has none
+     * yet, unless this pool interned it: a private value may go on
+     * changing, and the instances of another pool are not unique here.
+     * <p>
+     * Every slot holding the result takes one reference, so a value
+     * stored in n slots is interned n times.
+     */
+    T intern(T value) {
+        Entry<T> entry = facts.get(value);
+        if (entry == null) {
+            entry = new Entry<T>(value.getPool() == this ? value : value.internedCopy(this));
+            facts.put(entry.fact, entry);
+        }
+        entry.refs++;
+        return entry.fact;
+    }
+
+    /**
+     * Forgets one reference to an instance returned by intern, e.g.
+     * when the IN or OUT value that held it is replaced.  The instance
+     * is dropped with its last reference: the values a solver goes
+     * through on its way to the fixpoint are not kept.  Values not
+     * interned here are ignored.
+     */
+    void release(T value) {
+        Entry<T> entry = facts.get(value);
+        if (entry != null && entry.fact == value && --entry.refs == 0)
+            facts.remove(value);
+    }
+
+    /**
+     * Returns the number of distinct values interned.
+     */
+    int size() {
+        return facts.size();
+    }
+
+    private static class Entry<T> {
+        final T fact;
+        int refs;
+
+        Entry(T fact) {
+            this.fact = fact;
+        }
+    }
+}
@@ -1,19 +1,18 @@
 package flow;
 
 import joeq.Compiler.Quad.ControlFlowGraph;
-import joeq.Compiler.Quad.Operand.RegisterOperand;
 import joeq.Compiler.Quad.Operator;
 import joeq.Compiler.Quad.Quad;
-import joeq.Compiler.Quad.QuadIterator;
 
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Skeleton class for implementing a faint variable analysis
  * using the Flow.Analysis interface.
  */
-public class Faintness implements Flow.Analysis {
+public class Faintness implements Flow.CheckpointAnalysis, Flow.ViewAnalysis, Flow.IncrementalAnalysis {
 
     /**
      * Dataflow objects for the interior and entry/exit points
@@ -22,9 +21,16 @@ public class Faintness implements Flow.Analysis {
      * <p>
      * You are free to modify these fields, just make sure to
      * preserve the data printed by postprocess(), which relies on these.
+     * They are interned in facts, except the ones a solver has a view of.
      */
     private VarSet[] in, out;
     private VarSet entry, exit;
+    private FactPool<VarSet> facts;
+    /* Set instead of in and out when the solver gave block facts */
+    private BlockFacts blocks;
+    private VarSet scratch;
+    private AnalysisContext ctx;
+    private RegisterIndex registers;
 
     /**
      * This method initializes the datflow framework.
@@ -35,56 +41,28 @@ public class Faintness implements Flow.Analysis {
         // this line must come first.
         System.out.println("Method: " + cfg.getMethod().getName().toString());
 
-        // get the amount of space we need to allocate for the in/out arrays.
-        QuadIterator qit = new QuadIterator(cfg);
-        int max = 0;
-        while (qit.hasNext()) {
-            int id = qit.next().getID();
-            if (id > max)
-                max = id;
-        }
-        max += 1;
-
-        // Begin computing the universal set. This needs to be done before
-        // any VarSet objects are created.
-        Set<String> s = new TreeSet<String>();
-        VarSet.universalSet = s;
-
-        /* Arguments are always there. */
-        int numargs = cfg.getMethod().getParamTypes().length;
-        for (int i = 0; i < numargs; i++) {
-            s.add("R" + i);
-        }
-
-        qit = new QuadIterator(cfg);
-        while (qit.hasNext()) {
-            Quad q = qit.next();
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                s.add(def.getRegister().toString());
-            }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                s.add(use.getRegister().toString());
-            }
-        }
-        // End computing the universal set
+        // The universal set is the arguments plus every register
+        // defined or used; the context has it numbered already.
+        ctx = AnalysisContext.of(cfg);
+        registers = ctx.getRegisters();
 
         // allocate the in and out arrays.
-        in = new VarSet[max];
-        out = new VarSet[max];
+        in = new VarSet[ctx.getMaxID()];
+        out = new VarSet[ctx.getMaxID()];
 
         // initialize the contents of in and out.
-        qit = new QuadIterator(cfg);
-        while (qit.hasNext()) {
-            int id = qit.next().getID();
-            in[id] = new VarSet();
-            out[id] = new VarSet();
+        facts = new FactPool<VarSet>();
+        VarSet top = new VarSet(registers);
+        for (Quad q : ctx.getQuads()) {
+            in[q.getID()] = facts.intern(top);
+            out[q.getID()] = facts.intern(top);
         }
+        scratch = new VarSet(registers);
 
         // initialize the entry and exit points.
-        entry = new VarSet();
-        exit = new VarSet();
+        entry = new VarSet(registers);
+        exit = new VarSet(registers);
 
-        // Most of my initialization is above (computing the universal set)
         System.out.println("Initialization completed.");
     }
 
@@ -98,11 +76,13 @@ public class Faintness implements Flow.Analysis {
      * @param cfg Unused.
      */
     public void postprocess(ControlFlowGraph cfg) {
+        if (blocks == null)
+            internAll();
         System.out.println("entry: " + entry.toString());
-        for (int i = 0; i < in.length; i++) {
-            if (in[i] != null) {
-                System.out.println(i + " in:  " + in[i].toString());
-                System.out.println(i + " out: " + out[i].toString());
+        for (int i = 0; i < ctx.getMaxID(); i++) {
+            if (inOf(i) != null) {
+                System.out.println(i + " in:  " + inOf(i).toString());
+                System.out.println(i + " out: " + outOf(i).toString());
             }
         }
         System.out.println("exit: " + exit.toString());
@@ -140,69 +120,212 @@ public class Faintness implements Flow.Analysis {
 
     public Flow.DataflowObject getIn(Quad q) {
         Flow.DataflowObject result = newTempVar();
-        result.copy(in[q.getID()]);
+        result.copy(inOf(q.getID()));
         return result;
     }
 
     public Flow.DataflowObject getOut(Quad q) {
         Flow.DataflowObject result = newTempVar();
-        result.copy(out[q.getID()]);
+        result.copy(outOf(q.getID()));
         return result;
     }
 
     public void setIn(Quad q, Flow.DataflowObject value) {
-        in[q.getID()].copy(value);
+        materialize();
+        int id = q.getID();
+        facts.release(in[id]);
+        in[id] = facts.intern((VarSet) value);
     }
 
     public void setOut(Quad q, Flow.DataflowObject value) {
-        out[q.getID()].copy(value);
+        materialize();
+        int id = q.getID();
+        facts.release(out[id]);
+        out[id] = facts.intern((VarSet) value);
+    }
+
+    public Flow.DataflowObject viewEntry() {
+        return entry;
+    }
+
+    public Flow.DataflowObject viewExit() {
+        return exit;
+    }
+
+    public Flow.DataflowObject viewIn(Quad q) {
+        materialize();
+        return own(in, q.getID());
+    }
+
+    public Flow.DataflowObject viewOut(Quad q) {
+        materialize();
+        return own(out, q.getID());
+    }
+
+    /**
+     * Returns values[id], first replacing it by a private copy if it
+     * is interned.
+     */
+    private VarSet own(VarSet[] values, int id) {
+        if (values[id].getPool() != null) {
+            VarSet value = new VarSet(registers);
+            value.copy(values[id]);
+            facts.release(values[id]);
+            values[id] = value;
+        }
+        return values[id];
+    }
+
+    /**
+     * Interns every IN and OUT value again in a new pool, so the values
+     * only seen on the way to the fixpoint become garbage.
+     */
+    private void internAll() {
+        facts = new FactPool<VarSet>();
+        for (int i = 0; i < in.length; i++) {
+            if (in[i] != null) {
+                in[i] = facts.intern(in[i]);
+                out[i] = facts.intern(out[i]);
+            }
+        }
+    }
+
+    public void useBlockFacts(BlockFacts facts) {
+        blocks = facts;
+        in = null;
+        out = null;
+        this.facts = null;
+    }
+
+    /**
+     * Returns the stored IN value of the quad with this ID, or
+     * rebuilds it from the block facts; null if there is no such quad.
+     */
+    private VarSet inOf(int id) {
+        if (blocks == null)
+            return id < in.length ? in[id] : null;
+        Quad q = ctx.getQuad(id);
+        return q == null ? null : (VarSet) blocks.getIn(q);
+    }
+
+    private VarSet outOf(int id) {
+        if (blocks == null)
+            return id < out.length ? out[id] : null;
+        Quad q = ctx.getQuad(id);
+        return q == null ? null : (VarSet) blocks.getOut(q);
+    }
+
+    /**
+     * Stores the value of every quad again if the block facts are in
+     * use.
+     */
+    private void materialize() {
+        if (blocks == null)
+            return;
+        VarSet[] newIn = new VarSet[ctx.getMaxID()], newOut = new VarSet[ctx.getMaxID()];
+        facts = new FactPool<VarSet>();
+        for (Quad q : ctx.getQuads()) {
+            newIn[q.getID()] = facts.intern(inOf(q.getID()));
+            newOut[q.getID()] = facts.intern(outOf(q.getID()));
+        }
+        in = newIn;
+        out = newOut;
+        blocks = null;
+    }
+
+    /**
+     * Follows a change of the CFG: values are renumbered for the new
+     * registers, new quads start at Top and quads that are gone are
+     * reset.  The transfer function of a quad only depends on the quad.
+     */
+    public Collection<Quad> update(ControlFlowGraph cfg) {
+        materialize();
+        ctx = AnalysisContext.of(cfg);
+        registers = ctx.getRegisters();
+        VarSet[] oldIn = in, oldOut = out;
+        in = new VarSet[ctx.getMaxID()];
+        out = new VarSet[ctx.getMaxID()];
+        facts = new FactPool<VarSet>();
+        VarSet top = new VarSet(registers);
+        for (Quad q : ctx.getQuads()) {
+            int id = q.getID();
+            boolean kept = id < oldIn.length && oldIn[id] != null;
+            in[id] = facts.intern(kept ? oldIn[id].renumber(registers) : top);
+            out[id] = facts.intern(kept ? oldOut[id].renumber(registers) : top);
+        }
+        scratch = new VarSet(registers);
+        entry = entry.renumber(registers);
+        exit = exit.renumber(registers);
+        return Collections.emptyList();
     }
 
     public Flow.DataflowObject newTempVar() {
-        return new VarSet();
+        return new VarSet(registers);
     }
 
     public void processQuad(Quad q) {
-        VarSet val = (VarSet) getOut(q);
+        materialize();
+        int id = q.getID();
+        if (in[id].getPool() == null) {
+            // a solver has a view of it: change it in place
+            in[id].copy(out[id]);
+            transfer(q, in[id]);
+        } else {
+            scratch.copy(out[id]);
+            transfer(q, scratch);
+            facts.release(in[id]);
+            in[id] = facts.intern(scratch);
+        }
+    }
+
+    public void transfer(Quad q, Flow.DataflowObject value) {
+        VarSet val = (VarSet) value;
         // Move non-faintness over to used registers for move and binary operators
         if (q.getOperator() instanceof Operator.Move || q.getOperator() instanceof Operator.Binary) {
             // Get the defined register (we know there's exactly one)
-            RegisterOperand def = q.getDefinedRegisters().iterator().next();
-            boolean defWasFaint = val.isFaint(def.getRegister().toString());
+            int def = ctx.getDefs(q)[0];
+            boolean defWasFaint = val.isFaint(def);
             // Make the defined register faint
-            val.setFaint(def.getRegister().toString());
+            val.setFaint(def);
 
             // If the defined register was not faint, make the used registers not faint
             if (!defWasFaint) {
-                for (RegisterOperand use : q.getUsedRegisters()) {
-                    val.setNotFaint(use.getRegister().toString());
+                for (int use : ctx.getUses(q)) {
+                    val.setNotFaint(use);
                 }
             }
         } else {
             // For all other quads behave similarly to liveness analysis
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                val.setFaint(def.getRegister().toString());
+            for (int def : ctx.getDefs(q)) {
+                val.setFaint(def);
             }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                val.setNotFaint(use.getRegister().toString());
+            for (int use : ctx.getUses(q)) {
+                val.setNotFaint(use);
             }
         }
-        setIn(q, val);
     }
 
     /**
      * Class for the dataflow objects in the Faintness analysis.
      * Based very closely on the class flow.Liveness.VarSet
      */
-    public static class VarSet implements Flow.DataflowObject {
-        static Set<String> universalSet;
-        private Set<String> set;
+    public static class VarSet implements Flow.VersionedObject, FactPool.Fact<VarSet> {
+        private final RegisterIndex registers;
+        private final BitSet set;
+        private int version;
+        /* The size of set after the last meetWith, -1 if set changed since */
+        private int size = -1;
+        /* The pool that interned this set and its hash code, null if not interned */
+        private FactPool<?> pool;
+        private int hash;
 
         /**
          * The default value has all registers faint
          */
-        VarSet() {
-            set = new TreeSet<String>(universalSet);
+        VarSet(RegisterIndex registers) {
+            this.registers = registers;
+            set = new BitSet(registers.size());
+            set.set(0, registers.size());
         }
 
         /**
@@ -212,11 +335,13 @@ public class Faintness implements Flow.Analysis {
          * Most are similar to the methods in flow.Liveness.VarSet
          */
         public void setToTop() {
-            set = new TreeSet<String>(universalSet);
+            set.set(0, registers.size());
+            size = -1;
         }
 
         public void setToBottom() {
-            set = new TreeSet<String>();
+            set.clear();
+            size = -1;
         }
 
         /**
@@ -224,18 +349,47 @@ public class Faintness implements Flow.Analysis {
          */
         public void meetWith(Flow.DataflowObject o) {
             VarSet a = (VarSet) o;
-            set.retainAll(a.set); // strange name for intersect
+            // an intersection only removes bits, so a change shows in the count
+            int before = size >= 0 ? size : set.cardinality();
+            set.and(a.set);
+            size = set.cardinality();
+            if (size != before)
+                version++;
+        }
+
+        public int getVersion() {
+            return version;
         }
 
         public void copy(Flow.DataflowObject o) {
             VarSet a = (VarSet) o;
-            set = new TreeSet<String>(a.set);
+            set.clear();
+            set.or(a.set);
+            size = -1;
+        }
+
+        public FactPool<?> getPool() {
+            return pool;
+        }
+
+        public VarSet internedCopy(FactPool<?> pool) {
+            VarSet result = new VarSet(registers);
+            result.copy(this);
+            result.pool = pool;
+            result.hash = set.hashCode();
+            return result;
         }
 
         @Override
         public boolean equals(Object o) {
+            if (o == this)
+                return true;
             if (o instanceof VarSet) {
                 VarSet a = (VarSet) o;
+                // a pool has one instance of each set, as every slot
+                // holding it counts as a reference
+                if (pool != null && pool == a.pool)
+                    return false;
                 return set.equals(a.set);
             }
             return false;
@@ -243,7 +397,7 @@ public class Faintness implements Flow.Analysis {
 
         @Override
         public int hashCode() {
-            return set.hashCode();
+            return pool != null ? hash : set.hashCode();
         }
 
         /**
@@ -257,19 +411,52 @@ public class Faintness implements Flow.Analysis {
          */
         @Override
         public String toString() {
-            return set.toString();
+            return registers.toString(set);
         }
 
         void setFaint(String v) {
-            set.add(v);
+            set.set(registers.indexOf(v));
+            size = -1;
         }
 
         void setNotFaint(String v) {
-            set.remove(v);
+            set.clear(registers.indexOf(v));
+            size = -1;
         }
 
         boolean isFaint(String v) {
-            return set.contains(v);
+            return set.get(registers.indexOf(v));
+        }
+
+        void setFaint(int v) {
+            set.set(v);
+            size = -1;
+        }
+
+        void setNotFaint(int v) {
+            set.clear(v);
+            size = -1;
+        }
+
+        boolean isFaint(int v) {
+            return set.get(v);
+        }
+
+        /**
+         * Returns this set numbered by another index.  Registers the
+         * other index does not have are dropped; registers only it has
+         * are faint.
+         */
+        VarSet renumber(RegisterIndex other) {
+            if (registers.sameAs(other))
+                return this;
+            VarSet result = new VarSet(other);
+            for (int i = set.nextClearBit(0); i < registers.size(); i = set.nextClearBit(i + 1)) {
+                int j = other.indexOf(registers.nameOf(i));
+                if (j >= 0)
+                    result.set.clear(j);
+            }
+            return result;
         }
     }
 }
@@ -6,17 +6,40 @@ import joeq.Compiler.Quad.ControlFlowGraphVisitor;
 import joeq.Compiler.Quad.Quad;
 import joeq.Main.Helper;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
 public abstract class Flow {
 
     public static void main(String[] args) {
-        String usage = "USAGE: Flow solver-class analysis-class [test-class]+";
-        if (args.length < 3) {
+        String usage = "USAGE: Flow [-parallel] [-cache dir] solver-class analysis-class[,analysis-class]* [test-class]+";
+        // with -parallel, the methods of each class are analyzed on all processors
+        // with -cache, methods already solved in an earlier run are not solved again
+        boolean parallel = false;
+        File cacheDir = null;
+        int first = 0;
+        while (first < args.length && args[first].startsWith("-")) {
+            if (args[first].equals("-parallel")) {
+                parallel = true;
+                first++;
+            } else if (args[first].equals("-cache") && first + 1 < args.length) {
+                cacheDir = new File(args[first + 1]);
+                first += 2;
+            } else {
+                System.out.println(usage);
+                return;
+            }
+        }
+        if (args.length - first < 3) {
             System.out.println(usage);
             return;
         }
 
-        String solver_name = args[0];
-        String analysis_name = args[1];
+        String solver_name = args[first];
+        // several analyses are run one after the other on every method,
+        // or all at once by FusedSolver.
+        String[] analysis_names = args[first + 1].split(",");
 
         // get an instance of the solver class.
         Solver solver;
@@ -30,33 +53,98 @@ public abstract class Flow {
             return;
         }
 
-        // get an instance of the analysis class.
-        Analysis analysis;
-        try {
-            Object analysis_obj = Class.forName(analysis_name).newInstance();
-            analysis = (Analysis) analysis_obj;
-        } catch (Exception ex) {
-            System.out.println("ERROR: Could not load class '" + analysis_name +
-                    "' as Analysis: " + ex.toString());
+        // get an instance of each analysis class.
+        Analysis[] analyses = new Analysis[analysis_names.length];
+        Class<?>[] analysisClasses = new Class<?>[analysis_names.length];
+        for (int i = 0; i < analyses.length; i++) {
+            try {
+                Object analysis_obj = Class.forName(analysis_names[i]).newInstance();
+                analyses[i] = (Analysis) analysis_obj;
+                analysisClasses[i] = analysis_obj.getClass();
+            } catch (Exception ex) {
+                System.out.println("ERROR: Could not load class '" + analysis_names[i] +
+                        "' as Analysis: " + ex.toString());
+                System.out.println(usage);
+                return;
+            }
+        }
+        boolean fused = solver instanceof FusedSolver;
+        if (parallel && analyses.length > 1 && !fused) {
+            System.out.println("ERROR: -parallel runs several analyses only with flow.FusedSolver");
             System.out.println(usage);
             return;
         }
 
         // get the classes we will be visiting.
-        jq_Class[] classes = new jq_Class[args.length - 2];
+        jq_Class[] classes = new jq_Class[args.length - first - 2];
         for (int i = 0; i < classes.length; i++)
-            classes[i] = (jq_Class) Helper.load(args[i + 2]);
+            classes[i] = (jq_Class) Helper.load(args[i + first + 2]);
+
+        // with -Dflow.stats=csv or json, the cost of every method is
+        // written out at the end; see SolverStats.
+        SolverStats.Log stats = SolverStats.Log.fromProperties();
+        ResultCache cache = cacheDir == null ? null
+                : new ResultCache(cacheDir, solver.getClass(), analysisClasses, "");
+
+        if (parallel) {
+            // every method gets its own solver and analysis.
+            ParallelDriver.SolverFactory factory =
+                    ParallelDriver.newFactory(solver.getClass(), analysisClasses);
+            ParallelDriver driver = new ParallelDriver();
+            driver.setStatsLog(stats);
+            driver.setCache(cache);
+            for (int i = 0; i < classes.length; i++) {
+                System.out.println("Now analyzing " + classes[i].getName());
+                driver.runPass(classes[i], factory);
+            }
+            driver.shutdown();
+        } else {
+            // register the analysis with the solver.
+            ControlFlowGraphVisitor visitor;
+            if (analyses.length == 1 || fused) {
+                for (Analysis analysis : analyses)
+                    solver.registerAnalysis(analysis);
+                visitor = stats == null ? solver : stats.watch(solver);
+            } else {
+                visitor = oneAtATime(solver, analyses, stats);
+            }
+
+            // visit each of the specified classes with the solver.
+            for (int i = 0; i < classes.length; i++) {
+                System.out.println("Now analyzing " + classes[i].getName());
+                Helper.runPass(classes[i], cache == null ? visitor : cache.wrap(visitor));
+            }
+        }
 
-        // register the analysis with the solver.
-        solver.registerAnalysis(analysis);
+        if (cache != null)
+            System.err.println("Cache: " + cache.getHits() + " methods served, "
+                    + cache.getMisses() + " solved");
 
-        // visit each of the specified classes with the solver.
-        for (int i = 0; i < classes.length; i++) {
-            System.out.println("Now analyzing " + classes[i].getName());
-            Helper.runPass(classes[i], solver);
+        if (stats != null) {
+            try {
+                stats.dump();
+            } catch (IOException ex) {
+                System.out.println("ERROR: Could not write solver statistics: " + ex.toString());
+            }
         }
     }
 
+    /**
+     * Returns a visitor that solves every analysis in turn on each CFG.
+     */
+    private static ControlFlowGraphVisitor oneAtATime(final Solver solver, final Analysis[] analyses,
+                                                      final SolverStats.Log stats) {
+        final ControlFlowGraphVisitor visitor = stats == null ? solver : stats.watch(solver);
+        return new ControlFlowGraphVisitor() {
+            public void visitCFG(ControlFlowGraph cfg) {
+                for (Analysis analysis : analyses) {
+                    solver.registerAnalysis(analysis);
+                    visitor.visitCFG(cfg);
+                }
+            }
+        };
+    }
+
     public interface DataflowObject {
         void setToTop();
 
@@ -73,6 +161,29 @@ public abstract class Flow {
          */
     }
 
+    /**
+     * Optional extension of DataflowObject that counts the meets that
+     * changed it, so that a solver can tell whether a meet changed a
+     * value without keeping a copy to call equals on.
+     * <p>
+     * A solver can then keep meeting the upstream values into the IN
+     * (forward) or OUT (backward) value of a quad instead of computing
+     * it again from Top, and skip the transfer function whenever that
+     * value did not move: the value it produces cannot have changed.
+     * The meets give the same value as recomputing as long as values
+     * only go down from Top, i.e. when every value starts at Top and
+     * the transfer functions are monotone, as in InPlaceSolver and
+     * BlockSolver.  A solver that starts from values computed earlier
+     * (IncrementalSolver) cannot do this.
+     */
+    public interface VersionedObject extends DataflowObject {
+        /**
+         * Returns a counter that meetWith increments when it changes
+         * this value, and only then.
+         **/
+        int getVersion();
+    }
+
     public interface Analysis {
 
         /* Analysis-specific customization.  You can use these to
@@ -141,9 +252,105 @@ public abstract class Flow {
         void processQuad(Quad q);
     }
 
+    /**
+     * Optional extension of Analysis for solvers that push a value
+     * through several quads in a row (e.g. a whole basic block)
+     * without storing it in the per-quad IN/OUT slots in between.
+     */
+    public interface TransferAnalysis extends Analysis {
+        /**
+         * Performs the transfer operation of the given quad on val in
+         * place: val goes in as the IN value and comes out as the OUT
+         * value for a forward analysis, the other way around for a
+         * backward one.  processQuad(q) must behave like this applied
+         * to a copy of the quad's IN (resp. OUT) value.
+         **/
+        void transfer(Quad q, DataflowObject val);
+    }
+
+    /**
+     * Optional extension of Analysis that gives solvers the stored
+     * values themselves instead of copies, so that a solver can meet
+     * one value into another (e.g. the OUT of a predecessor into the
+     * IN of a quad) without allocating anything.
+     * <p>
+     * The returned objects belong to the analysis: modifying one is
+     * the same as setting that value.  A solver using them must leave
+     * every value it only reads untouched.
+     */
+    public interface ViewAnalysis extends Analysis {
+        /**
+         * Returns the stored entry value
+         **/
+        DataflowObject viewEntry();
+
+        /**
+         * Returns the stored exit value
+         **/
+        DataflowObject viewExit();
+
+        /**
+         * Returns the stored IN value of a quad
+         **/
+        DataflowObject viewIn(Quad q);
+
+        /**
+         * Returns the stored OUT value of a quad
+         **/
+        DataflowObject viewOut(Quad q);
+    }
+
+    /**
+     * Optional extension of Analysis for IncrementalSolver: lets the
+     * analysis follow changes to the CFG while keeping the values it
+     * has computed.
+     */
+    public interface IncrementalAnalysis extends Analysis {
+        /**
+         * Called after the CFG was changed, when AnalysisContext.of(cfg)
+         * describes the new CFG.  Keeps the values of the quads still
+         * in the CFG (renumbered if the registers changed), gives new
+         * quads the values preprocess would have given them, and
+         * forgets the quads that are gone.  Prints nothing.
+         * <p>
+         * Returns the quads whose transfer function changed as a
+         * side effect of the edit, e.g. the other definitions of a
+         * register for reaching definitions.
+         **/
+        Collection<Quad> update(ControlFlowGraph cfg);
+    }
+
+    /**
+     * Optional extension of TransferAnalysis for solvers working on
+     * blocks (see BlockSolver.setCheckpoints): instead of being given
+     * the IN and OUT values of every quad, the analysis is given the
+     * values at block heads and rebuilds the others as they are read.
+     */
+    public interface CheckpointAnalysis extends TransferAnalysis {
+        /**
+         * Called once the fixpoint is reached, instead of setting the
+         * values of every quad.  The analysis drops its per-quad values
+         * and answers getIn and getOut from facts until any of them is
+         * set or viewed; then it builds them all again.
+         **/
+        void useBlockFacts(BlockFacts facts);
+    }
+
     public interface Solver extends ControlFlowGraphVisitor {
         void visitCFG(ControlFlowGraph cfg);
 
         void registerAnalysis(Analysis a);
     }
+
+    /**
+     * Optional extension of Solver that counts what every visitCFG
+     * cost; see SolverStats.
+     */
+    public interface InstrumentedSolver extends Solver {
+        /**
+         * Returns the statistics of the last visitCFG, or null before
+         * the first one.
+         **/
+        SolverStats getStats();
+    }
 }
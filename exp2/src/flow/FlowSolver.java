@@ -4,16 +4,14 @@ package flow;
 
 import joeq.Compiler.Quad.ControlFlowGraph;
 import joeq.Compiler.Quad.Quad;
-import joeq.Compiler.Quad.QuadIterator;
-
-import java.util.Collection;
 
 /**
  * Skeleton class for implementing the Flow.Solver interface.
  */
-public class FlowSolver implements Flow.Solver {
+public class FlowSolver implements Flow.InstrumentedSolver {
 
     protected Flow.Analysis analysis;
+    private SolverStats stats;
 
     /**
      * Sets the analysis.  When visitCFG is called, it will
@@ -25,11 +23,19 @@ public class FlowSolver implements Flow.Solver {
         this.analysis = analyzer;
     }
 
+    /**
+     * Returns the statistics of the last visitCFG.
+     */
+    public SolverStats getStats() {
+        return stats;
+    }
+
     /**
      * Computes the meet over all predecessors/successors
      */
-    private Flow.DataflowObject computeConfluence(Collection<Quad> quads, boolean direction) {
+    private Flow.DataflowObject computeConfluence(Quad[] quads, boolean direction) {
         Flow.DataflowObject temp = analysis.newTempVar();
+        stats.meets += quads.length;
         for (Quad P : quads)
             if (P != null) {
                 if (direction)
@@ -56,12 +62,14 @@ public class FlowSolver implements Flow.Solver {
         else
             original = analysis.getIn(quad);
         analysis.processQuad(quad);
+        stats.transfers++;
 
         if (direction)
             modified = analysis.getOut(quad);
         else
             modified = analysis.getIn(quad);
 
+        stats.equals++;
         return !modified.equals(original);
     }
 
@@ -73,42 +81,50 @@ public class FlowSolver implements Flow.Solver {
      * @param cfg The control flow graph to analyze.
      */
     public void visitCFG(ControlFlowGraph cfg) {
+        stats = new SolverStats(cfg, this, analysis);
         // this needs to come first.
         analysis.preprocess(cfg);
+        stats.preprocessDone();
+        boolean forward = analysis.isForward();
+        QuadOrder quads = AnalysisContext.of(cfg).getOrder(forward);
+        boolean[] leaving = new boolean[quads.size()];
+        for (int i : quads.boundary)
+            leaving[i] = true;
+
         boolean changesMade = true;
         while (changesMade) {
             changesMade = false;
-            QuadIterator iter = new QuadIterator(cfg, analysis.isForward());
-            if (analysis.isForward())
-                while (iter.hasNext()) // Iterate forward
-                {
-                    Quad quad = iter.next();
-                    analysis.setIn(quad, computeConfluence(iter.predecessors1(), true));
+            stats.iterations++;
+            for (int i = 0; i < quads.size(); i++) {
+                Quad quad = quads.order[i];
+                if (forward) {
+                    analysis.setIn(quad, computeConfluence(quads.upstream[i], true));
                     changesMade = transfer(quad, true) || changesMade;
 
                     // Check if we need to update the exit
-                    if (iter.successors1().contains(null)) {
+                    if (leaving[i]) {
                         Flow.DataflowObject temp = analysis.getExit();
                         temp.meetWith(analysis.getOut(quad));
+                        stats.meets++;
                         analysis.setExit(temp);
                     }
-                }
-            else
-                while (iter.hasPrevious()) // Iterate backward
-                {
-                    Quad quad = iter.previous();
-                    analysis.setOut(quad, computeConfluence(iter.successors1(), false));
+                } else {
+                    analysis.setOut(quad, computeConfluence(quads.upstream[i], false));
                     changesMade = transfer(quad, false) || changesMade;
 
                     // Check if we need to update the entry
-                    if (iter.predecessors1().contains(null)) {
+                    if (leaving[i]) {
                         Flow.DataflowObject temp = analysis.getEntry();
                         temp.meetWith(analysis.getIn(quad));
+                        stats.meets++;
                         analysis.setEntry(temp);
                     }
                 }
+            }
         }
+        stats.solveDone();
         // this needs to come last.
         analysis.postprocess(cfg);
+        stats.postprocessDone();
     }
 }
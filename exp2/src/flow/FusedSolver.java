@@ -0,0 +1,187 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Solves several analyses of the same CFG together.
+ * <p>
+ * Unlike the other solvers, every call to registerAnalysis adds an
+ * analysis instead of replacing the last one.  The analyses are
+ * grouped by direction, and each group goes through the CFG once:
+ * there is one worklist walk over the shared quad order and edges, and
+ * at every quad the solver runs each analysis in the group that still
+ * has the quad pending.  Each analysis has its own pending set.  It
+ * stops being visited once its set is empty, and it visits its quads
+ * in the same order as it would under WorklistSolver.
+ * <p>
+ * The output is the same as running the analyses one at a time in the
+ * order they were registered.  Everything an analysis prints in
+ * preprocess and postprocess is buffered, and it is written out after
+ * that analysis's postprocess.  An analysis that changes the CFG in
+ * preprocess (e.g. FindRedundantNullChecks with -e) changes it for the
+ * analyses before it as well, so do not fuse it with others.
+ */
+public class FusedSolver implements Flow.Solver {
+
+    private final List<Flow.Analysis> analyses = new ArrayList<Flow.Analysis>();
+
+    /**
+     * Adds an analysis to the ones run by visitCFG.
+     *
+     * @param analyzer The analysis to run
+     */
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        analyses.add(analyzer);
+    }
+
+    public List<Flow.Analysis> getAnalyses() {
+        return analyses;
+    }
+
+    /**
+     * Runs all registered analyses over a given control flow graph.
+     *
+     * @param cfg The control flow graph to analyze.
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        int n = analyses.size();
+        ByteArrayOutputStream[] output = new ByteArrayOutputStream[n];
+        for (int a = 0; a < n; a++) {
+            output[a] = new ByteArrayOutputStream();
+            ByteArrayOutputStream console = OutputCapture.redirect(output[a]);
+            try {
+                analyses.get(a).preprocess(cfg);
+            } finally {
+                OutputCapture.redirect(console);
+            }
+        }
+
+        List<Flow.Analysis> forward = new ArrayList<Flow.Analysis>();
+        List<Flow.Analysis> backward = new ArrayList<Flow.Analysis>();
+        for (Flow.Analysis analysis : analyses)
+            (analysis.isForward() ? forward : backward).add(analysis);
+        AnalysisContext ctx = AnalysisContext.of(cfg);
+        if (!forward.isEmpty())
+            solve(ctx.getOrder(true), forward, true);
+        if (!backward.isEmpty())
+            solve(ctx.getOrder(false), backward, false);
+
+        for (int a = 0; a < n; a++) {
+            ByteArrayOutputStream console = OutputCapture.redirect(output[a]);
+            try {
+                analyses.get(a).postprocess(cfg);
+            } finally {
+                OutputCapture.redirect(console);
+            }
+            byte[] bytes = output[a].toByteArray();
+            System.out.write(bytes, 0, bytes.length);
+            System.out.flush();
+        }
+    }
+
+    /**
+     * Solves analyses of the same direction in one worklist walk.
+     */
+    private void solve(QuadOrder quads, List<Flow.Analysis> group, boolean forward) {
+        int k = group.size();
+        Flow.Analysis[] analysis = group.toArray(new Flow.Analysis[k]);
+        BitSet[] pending = new BitSet[k];
+        for (int a = 0; a < k; a++) {
+            pending[a] = new BitSet(quads.size());
+            pending[a].set(0, quads.size());
+        }
+
+        for (int i = nextPending(pending); i >= 0; i = nextPending(pending)) {
+            Quad quad = quads.order[i];
+            for (int a = 0; a < k; a++) {
+                if (!pending[a].get(i))
+                    continue;
+                pending[a].clear(i);
+                if (forward)
+                    analysis[a].setIn(quad, computeConfluence(analysis[a], quads.upstream[i], true));
+                else
+                    analysis[a].setOut(quad, computeConfluence(analysis[a], quads.upstream[i], false));
+                if (transfer(analysis[a], quad, forward)) {
+                    for (int s : quads.downstream[i])
+                        pending[a].set(s);
+                }
+            }
+        }
+
+        // Nothing inside the CFG reads the far boundary, so it is
+        // computed once from the converged values.
+        for (int a = 0; a < k; a++) {
+            Flow.DataflowObject temp = analysis[a].newTempVar();
+            for (int i : quads.boundary) {
+                if (forward)
+                    temp.meetWith(analysis[a].getOut(quads.order[i]));
+                else
+                    temp.meetWith(analysis[a].getIn(quads.order[i]));
+            }
+            if (forward)
+                analysis[a].setExit(temp);
+            else
+                analysis[a].setEntry(temp);
+        }
+    }
+
+    /**
+     * Returns the first quad any analysis has pending, or -1.
+     */
+    private static int nextPending(BitSet[] pending) {
+        int next = -1;
+        for (BitSet p : pending) {
+            int i = p.nextSetBit(0);
+            if (i >= 0 && (next < 0 || i < next))
+                next = i;
+        }
+        return next;
+    }
+
+    /**
+     * Computes the meet over all predecessors/successors
+     */
+    private static Flow.DataflowObject computeConfluence(Flow.Analysis analysis, Quad[] quads,
+                                                        boolean direction) {
+        Flow.DataflowObject temp = analysis.newTempVar();
+        for (Quad P : quads)
+            if (P != null) {
+                if (direction)
+                    temp.meetWith(analysis.getOut(P));
+                else
+                    temp.meetWith(analysis.getIn(P));
+            } else {
+                if (direction)
+                    temp.meetWith(analysis.getEntry());
+                else
+                    temp.meetWith(analysis.getExit());
+            }
+        return temp;
+    }
+
+    /**
+     * Processes a quad in the specified direction.
+     * Return value is true if changes were made
+     */
+    private static boolean transfer(Flow.Analysis analysis, Quad quad, boolean direction) {
+        Flow.DataflowObject original, modified;
+        if (direction)
+            original = analysis.getOut(quad);
+        else
+            original = analysis.getIn(quad);
+        analysis.processQuad(quad);
+
+        if (direction)
+            modified = analysis.getOut(quad);
+        else
+            modified = analysis.getIn(quad);
+
+        return !modified.equals(original);
+    }
+}
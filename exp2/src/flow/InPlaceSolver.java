@@ -0,0 +1,144 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+
+import java.util.BitSet;
+
+/**
+ * Worklist solver that works on the analysis' stored values directly,
+ * through the Flow.ViewAnalysis extension.
+ * <p>
+ * The quads are visited in the same order as in WorklistSolver, but
+ * the confluence is met straight into the IN (forward) or OUT
+ * (backward) value of the quad, and the value processQuad overwrites
+ * is saved into a single scratch object to detect changes.  Apart from
+ * that scratch object nothing is allocated during the fixpoint.
+ * <p>
+ * If the values are Flow.VersionedObjects, the confluence is not
+ * computed from Top again on later visits: the upstream values are met
+ * into what the quad already has, and when that does not change the
+ * quad's version, its transfer function is skipped.  Nothing is saved
+ * and equals is never called; a quad whose transfer ran is taken as
+ * changed.
+ */
+public class InPlaceSolver implements Flow.InstrumentedSolver {
+
+    protected Flow.ViewAnalysis analysis;
+    private SolverStats stats;
+
+    /**
+     * Sets the analysis.  When visitCFG is called, it will
+     * perform this analysis on a given CFG.
+     *
+     * @param analyzer The analysis to run; must implement
+     *                 Flow.ViewAnalysis
+     */
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        if (!(analyzer instanceof Flow.ViewAnalysis))
+            throw new IllegalArgumentException(analyzer.getClass().getName()
+                    + " does not implement Flow.ViewAnalysis");
+        this.analysis = (Flow.ViewAnalysis) analyzer;
+    }
+
+    /**
+     * Returns the statistics of the last visitCFG.
+     */
+    public SolverStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Runs the solver over a given control flow graph.  Prior
+     * to calling this, an analysis must be registered using
+     * registerAnalysis
+     *
+     * @param cfg The control flow graph to analyze.
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        stats = new SolverStats(cfg, this, analysis);
+        // this needs to come first.
+        analysis.preprocess(cfg);
+        stats.preprocessDone();
+
+        boolean forward = analysis.isForward();
+        QuadOrder quads = AnalysisContext.of(cfg).getOrder(forward);
+        Flow.DataflowObject original = analysis.newTempVar();
+        boolean versioned = original instanceof Flow.VersionedObject;
+        boolean[] visited = new boolean[quads.size()];
+
+        BitSet pending = new BitSet(quads.size());
+        pending.set(0, quads.size());
+        int last = Integer.MAX_VALUE;
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(0)) {
+            pending.clear(i);
+            if (i <= last)
+                stats.iterations++;
+            last = i;
+            Quad quad = quads.order[i];
+            Flow.DataflowObject confluence = forward ? analysis.viewIn(quad) : analysis.viewOut(quad);
+            boolean changed;
+            if (versioned && visited[i]) {
+                int version = ((Flow.VersionedObject) confluence).getVersion();
+                meetInto(confluence, quads.upstream[i], forward, false);
+                if (((Flow.VersionedObject) confluence).getVersion() == version)
+                    continue;
+                analysis.processQuad(quad);
+                stats.transfers++;
+                changed = true;
+            } else {
+                visited[i] = true;
+                meetInto(confluence, quads.upstream[i], forward, true);
+                Flow.DataflowObject result = forward ? analysis.viewOut(quad) : analysis.viewIn(quad);
+                original.copy(result);
+                analysis.processQuad(quad);
+                stats.transfers++;
+                stats.equals++;
+                changed = !result.equals(original);
+            }
+            if (changed) {
+                for (int s : quads.downstream[i])
+                    pending.set(s);
+            }
+        }
+
+        // Nothing inside the CFG reads the far boundary, so it is
+        // computed once from the converged values.
+        Flow.DataflowObject far = forward ? analysis.viewExit() : analysis.viewEntry();
+        far.setToTop();
+        stats.meets += quads.boundary.length;
+        for (int i : quads.boundary) {
+            if (forward)
+                far.meetWith(analysis.viewOut(quads.order[i]));
+            else
+                far.meetWith(analysis.viewIn(quads.order[i]));
+        }
+        stats.solveDone();
+
+        // this needs to come last.
+        analysis.postprocess(cfg);
+        stats.postprocessDone();
+    }
+
+    /**
+     * Meets the values of all predecessors/successors into target,
+     * after setting it to Top if fresh is set.
+     */
+    private void meetInto(Flow.DataflowObject target, Quad[] quads, boolean direction, boolean fresh) {
+        if (fresh)
+            target.setToTop();
+        stats.meets += quads.length;
+        for (Quad P : quads)
+            if (P != null) {
+                if (direction)
+                    target.meetWith(analysis.viewOut(P));
+                else
+                    target.meetWith(analysis.viewIn(P));
+            } else {
+                if (direction)
+                    target.meetWith(analysis.viewEntry());
+                else
+                    target.meetWith(analysis.viewExit());
+            }
+    }
+}
@@ -0,0 +1,234 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Worklist solver that can bring its results up to date after the CFG
+ * was edited without solving the whole CFG again.
+ * <p>
+ * visitCFG solves as WorklistSolver does.  After the CFG has been
+ * changed, update finds the quads whose value may be different now:
+ * the quads that were inserted or changed, the quads whose incoming or
+ * outgoing edges changed (which covers removed quads and rewired
+ * edges), the quads whose transfer function the analysis reports as
+ * changed, and everything downstream of those.  Only these quads are
+ * reset to Top and solved again; the values flowing in from the rest
+ * of the CFG are already at the fixpoint and do not depend on them.
+ * <p>
+ * The analysis must implement Flow.IncrementalAnalysis.
+ */
+public class IncrementalSolver implements Flow.InstrumentedSolver {
+
+    protected Flow.IncrementalAnalysis analysis;
+
+    private ControlFlowGraph cfg;
+    private AnalysisContext context;
+    private int lastRegion;
+    private SolverStats stats;
+
+    /**
+     * Sets the analysis.  When visitCFG is called, it will
+     * perform this analysis on a given CFG.
+     *
+     * @param analyzer The analysis to run; must implement
+     *                 Flow.IncrementalAnalysis
+     */
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        if (!(analyzer instanceof Flow.IncrementalAnalysis))
+            throw new IllegalArgumentException(analyzer.getClass().getName()
+                    + " does not implement Flow.IncrementalAnalysis");
+        this.analysis = (Flow.IncrementalAnalysis) analyzer;
+    }
+
+    /**
+     * Returns the statistics of the last visitCFG or update.  For an
+     * update, the preprocess time is the time taken to follow the edit.
+     */
+    public SolverStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Runs the solver over a given control flow graph.  Prior
+     * to calling this, an analysis must be registered using
+     * registerAnalysis
+     *
+     * @param cfg The control flow graph to analyze.
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        stats = new SolverStats(cfg, this, analysis);
+        // this needs to come first.
+        analysis.preprocess(cfg);
+        stats.preprocessDone();
+
+        this.cfg = cfg;
+        context = AnalysisContext.of(cfg);
+        QuadOrder quads = context.getOrder(analysis.isForward());
+        BitSet pending = new BitSet(quads.size());
+        pending.set(0, quads.size());
+        converge(quads, pending);
+        lastRegion = quads.size();
+        stats.solveDone();
+
+        // this needs to come last.
+        analysis.postprocess(cfg);
+        stats.postprocessDone();
+    }
+
+    /**
+     * Brings the results for the last CFG visited up to date after it
+     * was edited, then calls postprocess again.  The caller does not
+     * need to invalidate the AnalysisContext first.
+     *
+     * @param cfg     The CFG last passed to visitCFG, after the edit.
+     * @param changed The quads that were inserted or whose operator or
+     *                operands changed.  Removed quads and changed
+     *                edges are found without help.
+     */
+    public void update(ControlFlowGraph cfg, Collection<Quad> changed) {
+        if (cfg != this.cfg)
+            throw new IllegalStateException("update must follow visitCFG on the same CFG");
+
+        stats = new SolverStats(cfg, this, analysis);
+        AnalysisContext old = context;
+        AnalysisContext.invalidate(cfg);
+        context = AnalysisContext.of(cfg);
+        Collection<Quad> affected = analysis.update(cfg);
+        stats.preprocessDone();
+        QuadOrder quads = context.getOrder(analysis.isForward());
+
+        BitSet dirty = new BitSet(quads.size());
+        for (Quad q : changed)
+            mark(dirty, quads, q);
+        for (Quad q : affected)
+            mark(dirty, quads, q);
+        for (int i = 0; i < quads.size(); i++) {
+            int id = quads.order[i].getID();
+            if (!old.isVisited(id)
+                    || !Arrays.equals(old.getPredecessors(id), context.getPredecessors(id))
+                    || !Arrays.equals(old.getSuccessors(id), context.getSuccessors(id)))
+                dirty.set(i);
+        }
+
+        // everything downstream of a dirty quad may change as well
+        BitSet region = new BitSet(quads.size());
+        BitSet pending = (BitSet) dirty.clone();
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(0)) {
+            pending.clear(i);
+            region.set(i);
+            for (int s : quads.downstream[i])
+                if (!region.get(s))
+                    pending.set(s);
+        }
+
+        for (int i = region.nextSetBit(0); i >= 0; i = region.nextSetBit(i + 1)) {
+            Quad quad = quads.order[i];
+            analysis.setIn(quad, analysis.newTempVar());
+            analysis.setOut(quad, analysis.newTempVar());
+        }
+        converge(quads, (BitSet) region.clone());
+        lastRegion = region.cardinality();
+        stats.solveDone();
+
+        analysis.postprocess(cfg);
+        stats.postprocessDone();
+    }
+
+    /**
+     * Returns how many quads the last visitCFG or update solved.
+     */
+    public int getLastRegionSize() {
+        return lastRegion;
+    }
+
+    private static void mark(BitSet dirty, QuadOrder quads, Quad q) {
+        int i = quads.indexOf(q);
+        if (i >= 0)
+            dirty.set(i);
+    }
+
+    /**
+     * Runs the worklist from the given pending quads until nothing
+     * changes, then recomputes the far boundary.
+     */
+    private void converge(QuadOrder quads, BitSet pending) {
+        boolean forward = analysis.isForward();
+        int last = Integer.MAX_VALUE;
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(0)) {
+            pending.clear(i);
+            if (i <= last)
+                stats.iterations++;
+            last = i;
+            Quad quad = quads.order[i];
+            if (forward)
+                analysis.setIn(quad, computeConfluence(quads.upstream[i], true));
+            else
+                analysis.setOut(quad, computeConfluence(quads.upstream[i], false));
+            if (transfer(quad, forward)) {
+                for (int s : quads.downstream[i])
+                    pending.set(s);
+            }
+        }
+
+        Flow.DataflowObject temp = analysis.newTempVar();
+        stats.meets += quads.boundary.length;
+        for (int i : quads.boundary) {
+            if (forward)
+                temp.meetWith(analysis.getOut(quads.order[i]));
+            else
+                temp.meetWith(analysis.getIn(quads.order[i]));
+        }
+        if (forward)
+            analysis.setExit(temp);
+        else
+            analysis.setEntry(temp);
+    }
+
+    /**
+     * Computes the meet over all predecessors/successors
+     */
+    private Flow.DataflowObject computeConfluence(Quad[] quads, boolean direction) {
+        Flow.DataflowObject temp = analysis.newTempVar();
+        stats.meets += quads.length;
+        for (Quad P : quads)
+            if (P != null) {
+                if (direction)
+                    temp.meetWith(analysis.getOut(P));
+                else
+                    temp.meetWith(analysis.getIn(P));
+            } else {
+                if (direction)
+                    temp.meetWith(analysis.getEntry());
+                else
+                    temp.meetWith(analysis.getExit());
+            }
+        return temp;
+    }
+
+    /**
+     * Processes a quad in the specified direction.
+     * Return value is true if changes were made
+     */
+    private boolean transfer(Quad quad, boolean direction) {
+        Flow.DataflowObject original, modified;
+        if (direction)
+            original = analysis.getOut(quad);
+        else
+            original = analysis.getIn(quad);
+        analysis.processQuad(quad);
+        stats.transfers++;
+
+        if (direction)
+            modified = analysis.getOut(quad);
+        else
+            modified = analysis.getIn(quad);
+
+        stats.equals++;
+        return !modified.equals(original);
+    }
+}
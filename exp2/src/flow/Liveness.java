@@ -1,69 +1,55 @@
 package flow;
 
 import joeq.Compiler.Quad.ControlFlowGraph;
-import joeq.Compiler.Quad.Operand.RegisterOperand;
 import joeq.Compiler.Quad.Quad;
-import joeq.Compiler.Quad.QuadIterator;
 import joeq.Compiler.Quad.QuadVisitor;
 
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 
-public class Liveness implements Flow.Analysis {
+public class Liveness implements Flow.CheckpointAnalysis, Flow.ViewAnalysis, Flow.IncrementalAnalysis {
 
+    /* in[ID] and out[ID] are interned in facts, except the ones a solver has a view of */
     private VarSet[] in, out;
     private VarSet entry, exit;
+    private FactPool<VarSet> facts;
+    /* Set instead of in and out when the solver gave block facts */
+    private BlockFacts blocks;
+    private VarSet scratch;
+    private RegisterIndex registers;
     private TransferFunction transferfn = new TransferFunction();
 
     public void preprocess(ControlFlowGraph cfg) {
         System.out.println("Method: " + cfg.getMethod().getName().toString());
         /* Generate initial conditions. */
-        QuadIterator qit = new QuadIterator(cfg);
-        int max = 0;
-        while (qit.hasNext()) {
-            int x = qit.next().getID();
-            if (x > max) max = x;
-        }
-        max += 1;
-        in = new VarSet[max];
-        out = new VarSet[max];
-        qit = new QuadIterator(cfg);
-
-        Set<String> s = new TreeSet<String>();
-        VarSet.universalSet = s;
-
-        /* Arguments are always there. */
-        int numargs = cfg.getMethod().getParamTypes().length;
-        for (int i = 0; i < numargs; i++) {
-            s.add("R" + i);
-        }
-
-        while (qit.hasNext()) {
-            Quad q = qit.next();
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                s.add(def.getRegister().toString());
-            }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                s.add(use.getRegister().toString());
-            }
-        }
-
-        entry = new VarSet();
-        exit = new VarSet();
-        transferfn.val = new VarSet();
+        AnalysisContext ctx = AnalysisContext.of(cfg);
+        in = new VarSet[ctx.getMaxID()];
+        out = new VarSet[ctx.getMaxID()];
+
+        /* Arguments and every register defined or used. */
+        registers = ctx.getRegisters();
+        transferfn.ctx = ctx;
+        entry = new VarSet(registers);
+        exit = new VarSet(registers);
+        scratch = new VarSet(registers);
+        facts = new FactPool<VarSet>();
+        VarSet top = new VarSet(registers);
         for (int i = 0; i < in.length; i++) {
-            in[i] = new VarSet();
-            out[i] = new VarSet();
+            in[i] = facts.intern(top);
+            out[i] = facts.intern(top);
         }
 
         System.out.println("Initialization completed.");
     }
 
     public void postprocess(ControlFlowGraph cfg) {
+        if (blocks == null)
+            internAll();
         System.out.println("entry: " + entry.toString());
-        for (int i = 1; i < in.length; i++) {
-            System.out.println(i + " in:  " + in[i].toString());
-            System.out.println(i + " out: " + out[i].toString());
+        for (int i = 1; i < transferfn.ctx.getMaxID(); i++) {
+            System.out.println(i + " in:  " + inOf(i).toString());
+            System.out.println(i + " out: " + outOf(i).toString());
         }
         System.out.println("exit: " + exit.toString());
     }
@@ -97,67 +83,237 @@ public class Liveness implements Flow.Analysis {
 
     public Flow.DataflowObject getIn(Quad q) {
         Flow.DataflowObject result = newTempVar();
-        result.copy(in[q.getID()]);
+        result.copy(inOf(q.getID()));
         return result;
     }
 
     public Flow.DataflowObject getOut(Quad q) {
         Flow.DataflowObject result = newTempVar();
-        result.copy(out[q.getID()]);
+        result.copy(outOf(q.getID()));
         return result;
     }
 
     public void setIn(Quad q, Flow.DataflowObject value) {
-        in[q.getID()].copy(value);
+        materialize();
+        int id = q.getID();
+        facts.release(in[id]);
+        in[id] = facts.intern((VarSet) value);
     }
 
     public void setOut(Quad q, Flow.DataflowObject value) {
-        out[q.getID()].copy(value);
+        materialize();
+        int id = q.getID();
+        facts.release(out[id]);
+        out[id] = facts.intern((VarSet) value);
+    }
+
+    public Flow.DataflowObject viewEntry() {
+        return entry;
+    }
+
+    public Flow.DataflowObject viewExit() {
+        return exit;
+    }
+
+    public Flow.DataflowObject viewIn(Quad q) {
+        materialize();
+        return own(in, q.getID());
+    }
+
+    public Flow.DataflowObject viewOut(Quad q) {
+        materialize();
+        return own(out, q.getID());
+    }
+
+    /* Returns values[id], first replacing it by a private copy if it is interned */
+    private VarSet own(VarSet[] values, int id) {
+        if (values[id].getPool() != null) {
+            VarSet value = new VarSet(registers);
+            value.copy(values[id]);
+            facts.release(values[id]);
+            values[id] = value;
+        }
+        return values[id];
+    }
+
+    /**
+     * Interns every IN and OUT value again in a new pool.  The values
+     * the solver had views of are shared again, and the values seen on
+     * the way to the fixpoint, which only the old pool still holds,
+     * become garbage.
+     */
+    private void internAll() {
+        facts = new FactPool<VarSet>();
+        for (int i = 0; i < in.length; i++) {
+            in[i] = facts.intern(in[i]);
+            out[i] = facts.intern(out[i]);
+        }
+    }
+
+    public void useBlockFacts(BlockFacts facts) {
+        blocks = facts;
+        in = null;
+        out = null;
+        this.facts = null;
+    }
+
+    /* Returns the stored IN value of the quad with this ID, or rebuilds it from the block facts */
+    private VarSet inOf(int id) {
+        if (blocks == null)
+            return in[id];
+        Quad q = transferfn.ctx.getQuad(id);
+        Flow.DataflowObject value = q == null ? null : blocks.getIn(q);
+        return value != null ? (VarSet) value : new VarSet(registers);
+    }
+
+    private VarSet outOf(int id) {
+        if (blocks == null)
+            return out[id];
+        Quad q = transferfn.ctx.getQuad(id);
+        Flow.DataflowObject value = q == null ? null : blocks.getOut(q);
+        return value != null ? (VarSet) value : new VarSet(registers);
+    }
+
+    /* Stores the value of every quad again if the block facts are in use */
+    private void materialize() {
+        if (blocks == null)
+            return;
+        int max = transferfn.ctx.getMaxID();
+        VarSet[] newIn = new VarSet[max], newOut = new VarSet[max];
+        facts = new FactPool<VarSet>();
+        for (int i = 0; i < max; i++) {
+            newIn[i] = facts.intern(inOf(i));
+            newOut[i] = facts.intern(outOf(i));
+        }
+        in = newIn;
+        out = newOut;
+        blocks = null;
+    }
+
+    /**
+     * Follows a change of the CFG: values are renumbered for the new
+     * registers, new quads start at Top and quads that are gone are
+     * reset.  The transfer function of a quad only depends on the quad.
+     */
+    public Collection<Quad> update(ControlFlowGraph cfg) {
+        materialize();
+        AnalysisContext ctx = AnalysisContext.of(cfg);
+        registers = ctx.getRegisters();
+        transferfn.ctx = ctx;
+        VarSet[] oldIn = in, oldOut = out;
+        in = new VarSet[ctx.getMaxID()];
+        out = new VarSet[ctx.getMaxID()];
+        scratch = new VarSet(registers);
+        facts = new FactPool<VarSet>();
+        VarSet top = new VarSet(registers);
+        for (int id = 0; id < in.length; id++) {
+            boolean kept = id < oldIn.length && oldIn[id] != null && ctx.isVisited(id);
+            in[id] = facts.intern(kept ? oldIn[id].renumber(registers) : top);
+            out[id] = facts.intern(kept ? oldOut[id].renumber(registers) : top);
+        }
+        entry = entry.renumber(registers);
+        exit = exit.renumber(registers);
+        return Collections.emptyList();
     }
 
     public Flow.DataflowObject newTempVar() {
-        return new VarSet();
+        return new VarSet(registers);
     }
 
     /* Actually perform the transfer operation on the relevant
      * quad. */
 
     public void processQuad(Quad q) {
-        transferfn.val.copy(out[q.getID()]);
-        transferfn.visitQuad(q);
-        in[q.getID()].copy(transferfn.val);
+        materialize();
+        int id = q.getID();
+        if (in[id].getPool() == null) {
+            // a solver has a view of it: change it in place
+            in[id].copy(out[id]);
+            transfer(q, in[id]);
+        } else {
+            scratch.copy(out[id]);
+            transfer(q, scratch);
+            facts.release(in[id]);
+            in[id] = facts.intern(scratch);
+        }
     }
 
-    public static class VarSet implements Flow.DataflowObject {
-        public static Set<String> universalSet;
-        private Set<String> set;
+    public void transfer(Quad q, Flow.DataflowObject val) {
+        transferfn.val = (VarSet) val;
+        transferfn.visitQuad(q);
+    }
 
-        public VarSet() {
-            set = new TreeSet<String>();
+    /**
+     * Set of live registers, one bit per register of the CFG.
+     */
+    public static class VarSet implements Flow.VersionedObject, FactPool.Fact<VarSet> {
+        private final RegisterIndex registers;
+        private final BitSet set;
+        private int version;
+        /* The size of set after the last meetWith, -1 if set changed since */
+        private int size = -1;
+        /* The pool that interned this set and its hash code, null if not interned */
+        private FactPool<?> pool;
+        private int hash;
+
+        public VarSet(RegisterIndex registers) {
+            this.registers = registers;
+            set = new BitSet(registers.size());
         }
 
         public void setToTop() {
-            set = new TreeSet<String>();
+            set.clear();
+            size = -1;
         }
 
         public void setToBottom() {
-            set = new TreeSet<String>(universalSet);
+            set.set(0, registers.size());
+            size = -1;
         }
 
         public void meetWith(Flow.DataflowObject o) {
             VarSet a = (VarSet) o;
-            set.addAll(a.set);
+            // a union only adds bits, so a change shows in the count
+            int before = size >= 0 ? size : set.cardinality();
+            set.or(a.set);
+            size = set.cardinality();
+            if (size != before)
+                version++;
+        }
+
+        public int getVersion() {
+            return version;
         }
 
         public void copy(Flow.DataflowObject o) {
             VarSet a = (VarSet) o;
-            set = new TreeSet<String>(a.set);
+            set.clear();
+            set.or(a.set);
+            size = -1;
+        }
+
+        public FactPool<?> getPool() {
+            return pool;
+        }
+
+        public VarSet internedCopy(FactPool<?> pool) {
+            VarSet result = new VarSet(registers);
+            result.copy(this);
+            result.pool = pool;
+            result.hash = set.hashCode();
+            return result;
         }
 
         @Override
         public boolean equals(Object o) {
+            if (o == this)
+                return true;
             if (o instanceof VarSet) {
                 VarSet a = (VarSet) o;
+                // a pool has one instance of each set, as every slot
+                // holding it counts as a reference
+                if (pool != null && pool == a.pool)
+                    return false;
                 return set.equals(a.set);
             }
             return false;
@@ -165,34 +321,64 @@ public class Liveness implements Flow.Analysis {
 
         @Override
         public int hashCode() {
-            return set.hashCode();
+            return pool != null ? hash : set.hashCode();
         }
 
         @Override
         public String toString() {
-            return set.toString();
+            return registers.toString(set);
         }
 
         public void genVar(String v) {
-            set.add(v);
+            set.set(registers.indexOf(v));
+            size = -1;
         }
 
         public void killVar(String v) {
-            set.remove(v);
+            set.clear(registers.indexOf(v));
+            size = -1;
+        }
+
+        public void genVar(int v) {
+            set.set(v);
+            size = -1;
+        }
+
+        public void killVar(int v) {
+            set.clear(v);
+            size = -1;
+        }
+
+        /**
+         * Returns this set numbered by another index.  Registers the
+         * other index does not have are dropped; registers only it has
+         * are not live.
+         */
+        VarSet renumber(RegisterIndex other) {
+            if (registers.sameAs(other))
+                return this;
+            VarSet result = new VarSet(other);
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                int j = other.indexOf(registers.nameOf(i));
+                if (j >= 0)
+                    result.set.set(j);
+            }
+            return result;
         }
     }
 
     /* The QuadVisitor that actually does the computation */
     public static class TransferFunction extends QuadVisitor.EmptyVisitor {
+        AnalysisContext ctx;
         VarSet val;
 
         @Override
         public void visitQuad(Quad q) {
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                val.killVar(def.getRegister().toString());
+            for (int def : ctx.getDefs(q)) {
+                val.killVar(def);
             }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                val.genVar(use.getRegister().toString());
+            for (int use : ctx.getUses(q)) {
+                val.genVar(use);
             }
         }
     }
@@ -0,0 +1,72 @@
+package flow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Lets a thread send what it prints to System.out into a buffer of
+ * its own, without touching what other threads print.
+ * <p>
+ * The first redirect replaces System.out (once) with a stream that
+ * writes to the current thread's buffer when it has one, and to the
+ * original stream otherwise.
+ */
+class OutputCapture {
+
+    /**
+     * The buffer that System.out writes of the current thread go to,
+     * if any.
+     */
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER = new ThreadLocal<ByteArrayOutputStream>();
+
+    /**
+     * Makes System.out writes of the current thread go to buffer, or
+     * to the console if it is null.  Returns the buffer they went to
+     * before, to be passed back here when done.
+     */
+    static ByteArrayOutputStream redirect(ByteArrayOutputStream buffer) {
+        install();
+        System.out.flush();
+        ByteArrayOutputStream previous = BUFFER.get();
+        if (buffer == null)
+            BUFFER.remove();
+        else
+            BUFFER.set(buffer);
+        return previous;
+    }
+
+    private static synchronized void install() {
+        if (System.out instanceof CapturingStream)
+            return;
+        System.setOut(new CapturingStream(System.out));
+    }
+
+    private static class CapturingStream extends PrintStream {
+        CapturingStream(final PrintStream console) {
+            super(new OutputStream() {
+                public void write(int b) {
+                    ByteArrayOutputStream buffer = BUFFER.get();
+                    if (buffer != null)
+                        buffer.write(b);
+                    else
+                        console.write(b);
+                }
+
+                public void write(byte[] b, int off, int len) {
+                    ByteArrayOutputStream buffer = BUFFER.get();
+                    if (buffer != null)
+                        buffer.write(b, off, len);
+                    else
+                        console.write(b, off, len);
+                }
+
+                public void flush() throws IOException {
+                    if (BUFFER.get() == null)
+                        console.flush();
+                }
+            }, true);
+        }
+    }
+}
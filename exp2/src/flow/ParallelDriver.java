@@ -0,0 +1,211 @@
+package flow;
+
+import joeq.Class.jq_Class;
+import joeq.Class.jq_Method;
+import joeq.Compiler.Quad.CodeCache;
+import joeq.Compiler.Quad.ControlFlowGraph;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a solver over the methods of a class on a pool of worker
+ * threads, with a fresh solver and analysis for every method.
+ * <p>
+ * joeq itself is not thread-safe, so all CFGs of a class are built on
+ * the calling thread before any task starts.  Whatever a task prints
+ * to System.out is buffered and written out in the order the methods
+ * are declared once the task is done, so the output is the same as
+ * with Helper.runPass.
+ */
+public class ParallelDriver {
+
+    /**
+     * Creates a solver with a fresh analysis registered.  Called once
+     * per method, possibly from several threads at once.
+     */
+    public interface SolverFactory {
+        Flow.Solver newSolver();
+    }
+
+    /**
+     * Returns a factory that instantiates the given classes through
+     * their no-argument constructors.  Several analyses only make
+     * sense for a solver that keeps them all, like FusedSolver.
+     */
+    public static SolverFactory newFactory(final Class<?> solverClass, final Class<?>... analysisClasses) {
+        return new SolverFactory() {
+            public Flow.Solver newSolver() {
+                try {
+                    Flow.Solver solver = (Flow.Solver) solverClass.newInstance();
+                    for (Class<?> analysisClass : analysisClasses)
+                        solver.registerAnalysis((Flow.Analysis) analysisClass.newInstance());
+                    return solver;
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+    }
+
+    private final ExecutorService pool;
+    private SolverStats.Log stats;
+    private ResultCache cache;
+
+    /**
+     * Creates a driver with one worker thread per available processor.
+     */
+    public ParallelDriver() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelDriver(int threads) {
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "flow-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Makes runPass add the statistics of every method to the log, in
+     * declaration order, if the solvers keep any.  null turns it off.
+     */
+    public void setStatsLog(SolverStats.Log stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Makes runPass print the cached results of methods found in the
+     * cache instead of solving them, and cache the results of the
+     * others.  null turns it off.
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Analyzes every method of the class that has bytecode and prints
+     * the results in declaration order.  Returns once all methods are
+     * done; if one of them failed, its output is printed and the
+     * failure is rethrown.
+     */
+    public void runPass(jq_Class clazz, SolverFactory factory) {
+        List<ControlFlowGraph> cfgs = buildCFGs(clazz);
+        // the keys are taken before any task may change its CFG
+        String[] keys = new String[cfgs.size()];
+        List<Future<Result>> results = new ArrayList<Future<Result>>();
+        for (int i = 0; i < cfgs.size(); i++) {
+            byte[] cached = null;
+            if (cache != null) {
+                keys[i] = cache.keyOf(cfgs.get(i));
+                cached = cache.get(keys[i]);
+            }
+            results.add(pool.submit(new Task(cfgs.get(i), factory, cached)));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            Result result;
+            try {
+                result = results.get(i).get();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+            System.out.write(result.output, 0, result.output.length);
+            System.out.flush();
+            if (stats != null)
+                stats.add(result.stats);
+            if (result.error != null)
+                throw new RuntimeException(result.error);
+            if (cache != null && !result.cached)
+                cache.put(keys[i], result.output);
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Builds the CFGs of all methods of the class in the order
+     * Helper.runPass visits them: static methods first, then instance
+     * methods.
+     */
+    public static List<ControlFlowGraph> buildCFGs(jq_Class clazz) {
+        List<jq_Method> methods = new ArrayList<jq_Method>();
+        for (jq_Method m : clazz.getDeclaredStaticMethods())
+            methods.add(m);
+        for (jq_Method m : clazz.getDeclaredInstanceMethods())
+            methods.add(m);
+
+        List<ControlFlowGraph> cfgs = new ArrayList<ControlFlowGraph>();
+        for (jq_Method m : methods) {
+            if (m.getBytecode() == null)
+                continue;
+            ControlFlowGraph cfg = CodeCache.getCode(m);
+            // Walking the quad-level edges may load exception classes;
+            // do it once here so the workers only find loaded ones.
+            AnalysisContext ctx = AnalysisContext.of(cfg);
+            ctx.getOrder(true);
+            ctx.getOrder(false);
+            cfgs.add(cfg);
+        }
+        return cfgs;
+    }
+
+    private static class Result {
+        byte[] output;
+        Throwable error;
+        SolverStats stats;
+        boolean cached;
+    }
+
+    private static class Task implements Callable<Result> {
+        private final ControlFlowGraph cfg;
+        private final SolverFactory factory;
+        private final byte[] cached;
+
+        Task(ControlFlowGraph cfg, SolverFactory factory, byte[] cached) {
+            this.cfg = cfg;
+            this.factory = factory;
+            this.cached = cached;
+        }
+
+        public Result call() {
+            Result result = new Result();
+            if (cached != null) {
+                result.output = cached;
+                result.cached = true;
+                return result;
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            ByteArrayOutputStream console = OutputCapture.redirect(buffer);
+            try {
+                Flow.Solver solver = factory.newSolver();
+                solver.visitCFG(cfg);
+                if (solver instanceof Flow.InstrumentedSolver)
+                    result.stats = ((Flow.InstrumentedSolver) solver).getStats();
+            } catch (Throwable t) {
+                result.error = t;
+            } finally {
+                OutputCapture.redirect(console);
+            }
+            result.output = buffer.toByteArray();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package flow;
+
+import joeq.Compiler.Quad.Quad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The quads of a CFG numbered in the order QuadIterator visits them in
+ * one direction, together with the quad-level edges QuadIterator
+ * reports.  "Upstream" and "downstream" follow the direction of the
+ * analysis: for a backward analysis the upstream quads are the
+ * successors.  Solvers get one from AnalysisContext.getOrder.
+ */
+class QuadOrder {
+    /**
+     * Quads in visiting order.
+     */
+    final Quad[] order;
+    /**
+     * upstream[i] are the quads whose values meet into order[i]; null
+     * stands for the entry (forward) or the exit (backward).  A quad
+     * that QuadIterator does not visit (e.g. the last quad of an
+     * unreachable block) may show up here as well.
+     */
+    final Quad[][] upstream;
+    /**
+     * downstream[i] are the indices of the visited quads that consume
+     * the value produced by order[i].
+     */
+    final int[][] downstream;
+    /**
+     * Indices of the quads that flow into the exit (forward) or the
+     * entry (backward).
+     */
+    final int[] boundary;
+
+    /**
+     * Position of every quad in order by its ID, -1 if not visited.
+     */
+    private final int[] index;
+
+    QuadOrder(AnalysisContext ctx, boolean forward) {
+        order = forward ? ctx.getQuads() : ctx.getQuadsBackward();
+        int n = order.length;
+        index = new int[ctx.getMaxID()];
+        Arrays.fill(index, -1);
+        for (int i = 0; i < n; i++)
+            index[order[i].getID()] = i;
+
+        upstream = new Quad[n][];
+        downstream = new int[n][];
+        List<Integer> far = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            int id = order[i].getID();
+            int[] ups = forward ? ctx.getPredecessors(id) : ctx.getSuccessors(id);
+            int[] downs = forward ? ctx.getSuccessors(id) : ctx.getPredecessors(id);
+
+            upstream[i] = new Quad[ups.length];
+            for (int j = 0; j < ups.length; j++)
+                upstream[i][j] = ctx.getQuad(ups[j]);
+
+            List<Integer> targets = new ArrayList<Integer>();
+            for (int d : downs) {
+                if (d < 0)
+                    far.add(i);
+                else if (d < index.length && index[d] >= 0)
+                    targets.add(index[d]);
+            }
+            downstream[i] = toArray(targets);
+        }
+        boundary = toArray(far);
+    }
+
+    int size() {
+        return order.length;
+    }
+
+    /**
+     * Returns the position of q in the visiting order, or -1 if
+     * QuadIterator does not visit it.
+     */
+    int indexOf(Quad q) {
+        int id = q.getID();
+        return id < index.length ? index[id] : -1;
+    }
+
+    static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = list.get(i);
+        return result;
+    }
+}
@@ -3,28 +3,31 @@ package flow;
 // some useful things to import. add any additional imports you need.
 
 import joeq.Compiler.Quad.ControlFlowGraph;
-import joeq.Compiler.Quad.Operand.RegisterOperand;
 import joeq.Compiler.Quad.Quad;
-import joeq.Compiler.Quad.QuadIterator;
 import joeq.Compiler.Quad.QuadVisitor;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Skeleton class for implementing a reaching definition analysis
  * using the Flow.Analysis interface.
  */
-public class ReachingDefs implements Flow.Analysis {
+public class ReachingDefs implements Flow.CheckpointAnalysis, Flow.ViewAnalysis, Flow.IncrementalAnalysis {
 
     /**
      * Class for the dataflow objects in the ReachingDefs analysis.
      * You are free to change this class or move it to another file.
      */
-    public static Set<Integer> universalSet = new TreeSet<Integer>();
-    private static HashMap<String, TreeSet<Integer>> mymap;
+    private BitSet universalSet;
+    private AnalysisContext ctx;
+    /**
+     * For every register of the context, the IDs of the quads
+     * defining it.
+     */
+    private BitSet[] mymap;
     /**
      * Dataflow objects for the interior and entry/exit points
      * of the CFG. in[ID] and out[ID] store the entry and exit
@@ -32,9 +35,14 @@ public class ReachingDefs implements Flow.Analysis {
      * <p>
      * You are free to modify these fields, just make sure to
      * preserve the data printed by postprocess(), which relies on these.
+     * They are interned in facts, except the ones a solver has a view of.
      */
     private MyDataflowObject[] in, out;
     private MyDataflowObject entry, exit;
+    private FactPool<MyDataflowObject> facts;
+    /* Set instead of in and out when the solver gave block facts */
+    private BlockFacts blocks;
+    private MyDataflowObject scratch;
     private TransferFunction transferfn = new TransferFunction();
 
     /**
@@ -45,49 +53,83 @@ public class ReachingDefs implements Flow.Analysis {
     public void preprocess(ControlFlowGraph cfg) {
         // this line must come first.
         System.out.println("Method: " + cfg.getMethod().getName().toString());
-        mymap = new HashMap<String, TreeSet<Integer>>();
-
-        // get the amount of space we need to allocate for the in/out arrays.
-        QuadIterator qit = new QuadIterator(cfg);
-        int max = 0;
-        while (qit.hasNext()) {
-            int id = qit.next().getID();
-            if (id > max)
-                max = id;
-        }
-        max += 1;
+        ctx = AnalysisContext.of(cfg);
+        int max = ctx.getMaxID();
 
         // allocate the in and out arrays.
         in = new MyDataflowObject[max];
         out = new MyDataflowObject[max];
 
         // initialize the contents of in and out.
-        qit = new QuadIterator(cfg);
-        while (qit.hasNext()) {
-            int id = qit.next().getID();
-            in[id] = new MyDataflowObject();
-            out[id] = new MyDataflowObject();
+        facts = new FactPool<MyDataflowObject>();
+        MyDataflowObject top = new MyDataflowObject();
+        for (Quad q : ctx.getQuads()) {
+            in[q.getID()] = facts.intern(top);
+            out[q.getID()] = facts.intern(top);
         }
+        scratch = new MyDataflowObject();
+        buildDefinitions();
 
-        qit = new QuadIterator(cfg);
-        while (qit.hasNext()) {
-            Quad q = qit.next();
-            int id = q.getID();
-            universalSet.add(id);
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                String key = def.getRegister().toString();
-                if (mymap.get(key) == null) mymap.put(key, new TreeSet<Integer>());
-                TreeSet<Integer> myset = mymap.get(key);
-                myset.add(id);
-                mymap.put(key, myset);
-            }
-        }
         // initialize the entry and exit points.
-        transferfn.val = new MyDataflowObject();
         entry = new MyDataflowObject();
         exit = new MyDataflowObject();
     }
 
+    /**
+     * Computes universalSet and mymap for the current context.
+     */
+    private void buildDefinitions() {
+        int max = ctx.getMaxID();
+        universalSet = new BitSet(max);
+        mymap = new BitSet[ctx.getRegisters().size()];
+        for (int i = 0; i < mymap.length; i++)
+            mymap[i] = new BitSet(max);
+        for (Quad q : ctx.getQuads()) {
+            universalSet.set(q.getID());
+            for (int def : ctx.getDefs(q))
+                mymap[def].set(q.getID());
+        }
+    }
+
+    /**
+     * Follows a change of the CFG: new quads start at Top and quads
+     * that are gone are dropped.  A quad defining a register that is
+     * now defined by a different set of quads kills a different set,
+     * so those quads are returned.
+     */
+    public Collection<Quad> update(ControlFlowGraph cfg) {
+        materialize();
+        RegisterIndex oldRegisters = ctx.getRegisters();
+        BitSet[] oldMap = mymap;
+        ctx = AnalysisContext.of(cfg);
+
+        MyDataflowObject[] oldIn = in, oldOut = out;
+        in = new MyDataflowObject[ctx.getMaxID()];
+        out = new MyDataflowObject[ctx.getMaxID()];
+        facts = new FactPool<MyDataflowObject>();
+        MyDataflowObject top = new MyDataflowObject();
+        for (Quad q : ctx.getQuads()) {
+            int id = q.getID();
+            boolean kept = id < oldIn.length && oldIn[id] != null;
+            in[id] = facts.intern(kept ? oldIn[id] : top);
+            out[id] = facts.intern(kept ? oldOut[id] : top);
+        }
+        scratch = new MyDataflowObject();
+        buildDefinitions();
+
+        List<Quad> changed = new ArrayList<Quad>();
+        for (Quad q : ctx.getQuads()) {
+            for (int def : ctx.getDefs(q)) {
+                int old = oldRegisters.indexOf(ctx.getRegisters().nameOf(def));
+                if (old < 0 || !oldMap[old].equals(mymap[def])) {
+                    changed.add(q);
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
     /**
      * This method is called after the fixpoint is reached.
      * It must print out the dataflow objects associated with
@@ -98,11 +140,13 @@ public class ReachingDefs implements Flow.Analysis {
      * @param cfg Unused.
      */
     public void postprocess(ControlFlowGraph cfg) {
+        if (blocks == null)
+            internAll();
         System.out.println("entry: " + entry.toString());
-        for (int i = 1; i < in.length; i++) {
-            if (in[i] != null) {
-                System.out.println(i + " in:  " + in[i].toString());
-                System.out.println(i + " out: " + out[i].toString());
+        for (int i = 1; i < ctx.getMaxID(); i++) {
+            if (inOf(i) != null) {
+                System.out.println(i + " in:  " + inOf(i).toString());
+                System.out.println(i + " out: " + outOf(i).toString());
             }
         }
         System.out.println("exit: " + exit.toString());
@@ -139,22 +183,117 @@ public class ReachingDefs implements Flow.Analysis {
 
     public Flow.DataflowObject getIn(Quad q) {
         Flow.DataflowObject result = newTempVar();
-        result.copy(in[q.getID()]);
+        result.copy(inOf(q.getID()));
         return result;
     }
 
     public Flow.DataflowObject getOut(Quad q) {
         Flow.DataflowObject result = newTempVar();
-        result.copy(out[q.getID()]);
+        result.copy(outOf(q.getID()));
         return result;
     }
 
     public void setIn(Quad q, Flow.DataflowObject value) {
-        in[q.getID()].copy(value);
+        materialize();
+        int id = q.getID();
+        facts.release(in[id]);
+        in[id] = facts.intern((MyDataflowObject) value);
     }
 
     public void setOut(Quad q, Flow.DataflowObject value) {
-        out[q.getID()].copy(value);
+        materialize();
+        int id = q.getID();
+        facts.release(out[id]);
+        out[id] = facts.intern((MyDataflowObject) value);
+    }
+
+    public Flow.DataflowObject viewEntry() {
+        return entry;
+    }
+
+    public Flow.DataflowObject viewExit() {
+        return exit;
+    }
+
+    public Flow.DataflowObject viewIn(Quad q) {
+        materialize();
+        return own(in, q.getID());
+    }
+
+    public Flow.DataflowObject viewOut(Quad q) {
+        materialize();
+        return own(out, q.getID());
+    }
+
+    /**
+     * Returns values[id], first replacing it by a private copy if it
+     * is interned.
+     */
+    private MyDataflowObject own(MyDataflowObject[] values, int id) {
+        if (values[id].getPool() != null) {
+            MyDataflowObject value = new MyDataflowObject();
+            value.copy(values[id]);
+            facts.release(values[id]);
+            values[id] = value;
+        }
+        return values[id];
+    }
+
+    /**
+     * Interns every IN and OUT value again in a new pool, so the values
+     * only seen on the way to the fixpoint become garbage.
+     */
+    private void internAll() {
+        facts = new FactPool<MyDataflowObject>();
+        for (int i = 0; i < in.length; i++) {
+            if (in[i] != null) {
+                in[i] = facts.intern(in[i]);
+                out[i] = facts.intern(out[i]);
+            }
+        }
+    }
+
+    public void useBlockFacts(BlockFacts facts) {
+        blocks = facts;
+        in = null;
+        out = null;
+        this.facts = null;
+    }
+
+    /**
+     * Returns the stored IN value of the quad with this ID, or
+     * rebuilds it from the block facts; null if there is no such quad.
+     */
+    private MyDataflowObject inOf(int id) {
+        if (blocks == null)
+            return id < in.length ? in[id] : null;
+        Quad q = ctx.getQuad(id);
+        return q == null ? null : (MyDataflowObject) blocks.getIn(q);
+    }
+
+    private MyDataflowObject outOf(int id) {
+        if (blocks == null)
+            return id < out.length ? out[id] : null;
+        Quad q = ctx.getQuad(id);
+        return q == null ? null : (MyDataflowObject) blocks.getOut(q);
+    }
+
+    /**
+     * Stores the value of every quad again if the block facts are in
+     * use.
+     */
+    private void materialize() {
+        if (blocks == null)
+            return;
+        MyDataflowObject[] newIn = new MyDataflowObject[ctx.getMaxID()], newOut = new MyDataflowObject[ctx.getMaxID()];
+        facts = new FactPool<MyDataflowObject>();
+        for (Quad q : ctx.getQuads()) {
+            newIn[q.getID()] = facts.intern(inOf(q.getID()));
+            newOut[q.getID()] = facts.intern(outOf(q.getID()));
+        }
+        in = newIn;
+        out = newOut;
+        blocks = null;
     }
 
     public Flow.DataflowObject newTempVar() {
@@ -162,31 +301,52 @@ public class ReachingDefs implements Flow.Analysis {
     }
 
     public void processQuad(Quad q) {
-        transferfn.val.copy(in[q.getID()]);
+        materialize();
+        int id = q.getID();
+        if (out[id].getPool() == null) {
+            // a solver has a view of it: change it in place
+            out[id].copy(in[id]);
+            transfer(q, out[id]);
+        } else {
+            scratch.copy(in[id]);
+            transfer(q, scratch);
+            facts.release(out[id]);
+            out[id] = facts.intern(scratch);
+        }
+    }
+
+    public void transfer(Quad q, Flow.DataflowObject val) {
+        transferfn.val = (MyDataflowObject) val;
         transferfn.visitQuad(q);
-        out[q.getID()].copy(transferfn.val);
     }
 
     /* The QuadVisitor that actually does the computation */
-    public static class TransferFunction extends QuadVisitor.EmptyVisitor {
+    public class TransferFunction extends QuadVisitor.EmptyVisitor {
         MyDataflowObject val;
 
         @Override
         public void visitQuad(Quad q) {
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                String key = def.getRegister().toString();
+            int[] defs = ctx.getDefs(q);
+            for (int def : defs) {
                 //kill all the definitions with respect to the assigned register
-                Iterator<Integer> iter = mymap.get(key).iterator();
-                while (iter.hasNext())
-                    val.killVar(iter.next());
+                val.killVars(mymap[def]);
             }
-            if (q.getDefinedRegisters().size() > 0)
+            if (defs.length > 0)
                 val.genVar(q.getID());
         }
     }
 
-    public class MyDataflowObject implements Flow.DataflowObject {
-        private Set<Integer> set;
+    /**
+     * Set of reaching definitions, one bit per quad ID.
+     */
+    public class MyDataflowObject implements Flow.VersionedObject, FactPool.Fact<MyDataflowObject> {
+        private final BitSet set;
+        private int version;
+        /* The size of set after the last meetWith, -1 if set changed since */
+        private int size = -1;
+        /* The pool that interned this set and its hash code, null if not interned */
+        private FactPool<?> pool;
+        private int hash;
 
         /**
          * Methods from the Flow.DataflowObject interface.
@@ -194,15 +354,18 @@ public class ReachingDefs implements Flow.Analysis {
          * These need to be filled in.
          */
         public MyDataflowObject() {
-            set = new TreeSet<Integer>();
+            set = new BitSet(ctx.getMaxID());
         }
 
         public void setToTop() {
-            set = new TreeSet<Integer>();
+            set.clear();
+            size = -1;
         }
 
         public void setToBottom() {
-            set = new TreeSet<Integer>(universalSet);
+            set.clear();
+            set.or(universalSet);
+            size = -1;
         }
 
         /**
@@ -210,18 +373,47 @@ public class ReachingDefs implements Flow.Analysis {
          */
         public void meetWith(Flow.DataflowObject o) {
             MyDataflowObject t = (MyDataflowObject) o;
-            this.set.addAll(t.set);
+            // a union only adds bits, so a change shows in the count
+            int before = size >= 0 ? size : set.cardinality();
+            set.or(t.set);
+            size = set.cardinality();
+            if (size != before)
+                version++;
+        }
+
+        public int getVersion() {
+            return version;
         }
 
         public void copy(Flow.DataflowObject o) {
             MyDataflowObject t = (MyDataflowObject) o;
-            set = new TreeSet<Integer>(t.set);
+            set.clear();
+            set.or(t.set);
+            size = -1;
+        }
+
+        public FactPool<?> getPool() {
+            return pool;
+        }
+
+        public MyDataflowObject internedCopy(FactPool<?> pool) {
+            MyDataflowObject result = new MyDataflowObject();
+            result.copy(this);
+            result.pool = pool;
+            result.hash = set.hashCode();
+            return result;
         }
 
         @Override
         public boolean equals(Object o) {
+            if (o == this)
+                return true;
             if (o instanceof MyDataflowObject) {
                 MyDataflowObject a = (MyDataflowObject) o;
+                // a pool has one instance of each set, as every slot
+                // holding it counts as a reference
+                if (pool != null && pool == a.pool)
+                    return false;
                 return set.equals(a.set);
             }
             return false;
@@ -229,7 +421,7 @@ public class ReachingDefs implements Flow.Analysis {
 
         @Override
         public int hashCode() {
-            return set.hashCode();
+            return pool != null ? hash : set.hashCode();
         }
 
         /**
@@ -243,15 +435,28 @@ public class ReachingDefs implements Flow.Analysis {
          */
         @Override
         public String toString() {
-            return set.toString();
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                if (sb.length() > 1)
+                    sb.append(", ");
+                sb.append(i);
+            }
+            return sb.append(']').toString();
         }
 
         public void genVar(int v) {
-            set.add(v);
+            set.set(v);
+            size = -1;
         }
 
         public void killVar(int v) {
-            set.remove(v);
+            set.clear(v);
+            size = -1;
+        }
+
+        public void killVars(BitSet vs) {
+            set.andNot(vs);
+            size = -1;
         }
     }
 }
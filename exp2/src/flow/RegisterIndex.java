@@ -0,0 +1,124 @@
+package flow;
+
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Dense numbering of the registers of one CFG, so that sets of
+ * registers can be kept as bit vectors.  Registers are numbered in
+ * the sorted order of their names, so walking a bit vector from the
+ * lowest bit up lists them in the same order a SortedSet of the names
+ * would.
+ * <p>
+ * Registers are identified by name, as the analyses always did: two
+ * Register objects with the same name share an index.  Looking up a
+ * Register goes through its number and does not build the name.
+ */
+public class RegisterIndex {
+    private final String[] names;
+    private final Map<String, Integer> indices;
+    /**
+     * Indices of the registers named "R<n>" and "T<n>" by n, -1 where
+     * there is no such register.  Guard registers (number -1) are only
+     * found through their name.
+     */
+    private int[] locals, temps;
+
+    public RegisterIndex(SortedSet<String> names) {
+        this.names = names.toArray(new String[names.size()]);
+        this.indices = new HashMap<String, Integer>();
+        locals = new int[0];
+        temps = new int[0];
+        for (int i = 0; i < this.names.length; i++) {
+            String name = this.names[i];
+            indices.put(name, i);
+            int number;
+            try {
+                number = Integer.parseInt(name.substring(1));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            if (number < 0)
+                continue;
+            if (name.charAt(0) == 'R')
+                locals = put(locals, number, i);
+            else if (name.charAt(0) == 'T')
+                temps = put(temps, number, i);
+        }
+    }
+
+    private static int[] put(int[] byNumber, int number, int index) {
+        if (number >= byNumber.length) {
+            int[] grown = new int[Math.max(number + 1, 2 * byNumber.length)];
+            System.arraycopy(byNumber, 0, grown, 0, byNumber.length);
+            Arrays.fill(grown, byNumber.length, grown.length, -1);
+            byNumber = grown;
+        }
+        byNumber[number] = index;
+        return byNumber;
+    }
+
+    /**
+     * Returns the number of registers.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the index of the register with the given name, or -1 if
+     * it is not a register of this CFG.
+     */
+    public int indexOf(String name) {
+        Integer i = indices.get(name);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Returns the index of the register, or -1 if it is not a register
+     * of this CFG.
+     */
+    public int indexOf(Register r) {
+        int number = r.getNumber();
+        int[] byNumber = r.isTemp() ? temps : locals;
+        if (number >= 0 && number < byNumber.length)
+            return byNumber[number];
+        if (number >= 0)
+            return -1;
+        return indexOf(r.toString());
+    }
+
+    /**
+     * Returns true if the other index numbers the same registers the
+     * same way.
+     */
+    public boolean sameAs(RegisterIndex other) {
+        return other == this || Arrays.equals(names, other.names);
+    }
+
+    /**
+     * Returns the name of the register with the given index.
+     */
+    public String nameOf(int index) {
+        return names[index];
+    }
+
+    /**
+     * Formats a set of registers as "[R0, R1, T2]", exactly like
+     * SortedSet.toString() on their names.
+     */
+    public String toString(BitSet set) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(names[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
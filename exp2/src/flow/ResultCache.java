@@ -0,0 +1,269 @@
+package flow;
+
+import joeq.Class.jq_Method;
+import joeq.Class.jq_TryCatchBC;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A directory that keeps the results of every method solved with one
+ * solver and one analysis across runs, so that methods that did not
+ * change since the last run are not solved again.
+ * <p>
+ * The results are kept the way postprocess prints them.  That is the
+ * form DataflowObject.toString has to keep repeatable across runs, and
+ * it is all Flow and FindRedundantNullChecks do with the converged
+ * facts, so printing a cached entry is the same as solving again.
+ * <p>
+ * An entry is found by a SHA-1 of the method's bytecode and exception
+ * table, the quads joeq translates them into, and the identity of the
+ * solver and the analysis.  The bytecode refers to constants and
+ * members by constant pool index, so the quads, which show them
+ * resolved, are hashed as well.  The identity is the class names, the
+ * options the caller passes and a hash of the class files of the
+ * solver, the analysis and their superclasses, so recompiling either
+ * makes the old entries unreachable.  Changes anywhere else (joeq, or
+ * other classes the analysis calls) are not noticed: delete the
+ * directory then.
+ */
+public class ResultCache {
+
+    /* Bump when the layout of the entries changes */
+    private static final String FORMAT = "1";
+
+    private final File dir;
+    private final byte[] identity;
+    private int hits, misses;
+
+    /**
+     * @param options whatever else changes the results, e.g. the
+     *                flags the analysis was created with; may be empty
+     */
+    public ResultCache(File dir, Class<?> solverClass, Class<?> analysisClass, String options) {
+        this(dir, solverClass, new Class<?>[]{analysisClass}, options);
+    }
+
+    /**
+     * For a solver running several analyses on every method, like
+     * FusedSolver.
+     */
+    public ResultCache(File dir, Class<?> solverClass, Class<?>[] analysisClasses, String options) {
+        this.dir = dir;
+        MessageDigest md = newDigest();
+        update(md, FORMAT);
+        update(md, options);
+        digestClass(md, solverClass);
+        for (Class<?> c : analysisClasses)
+            digestClass(md, c);
+        this.identity = md.digest();
+    }
+
+    /**
+     * Returns the key of the results of the method.  Call it before
+     * the CFG is solved: some analyses change the CFG as they go.
+     */
+    public String keyOf(ControlFlowGraph cfg) {
+        jq_Method m = cfg.getMethod();
+        MessageDigest md = newDigest();
+        md.update(identity);
+        update(md, m.getDeclaringClass().getName() + "." + m.getNameAndDesc());
+        md.update(m.getBytecode());
+        jq_TryCatchBC[] handlers = m.getExceptionTable();
+        if (handlers != null)
+            for (jq_TryCatchBC h : handlers)
+                update(md, h.toString());
+        update(md, cfg.fullDump());
+        return toHex(md.digest());
+    }
+
+    /**
+     * Returns what solving the method printed, or null if it is not in
+     * the cache.
+     */
+    public synchronized byte[] get(String key) {
+        File file = fileOf(key);
+        if (!file.isFile()) {
+            misses++;
+            return null;
+        }
+        try {
+            byte[] output = read(file);
+            hits++;
+            return output;
+        } catch (IOException ex) {
+            misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Stores what solving the method printed.  The entry is written to
+     * a temporary file first and renamed, so a run that is killed or
+     * another run that shares the directory never sees half of one.
+     * A cache that cannot be written only costs time, so failures are
+     * reported on System.err and otherwise ignored.
+     */
+    public void put(String key, byte[] output) {
+        File file = fileOf(key);
+        File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(output);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file) && !file.isFile())
+                throw new IOException("cannot rename " + tmp + " to " + file);
+        } catch (IOException ex) {
+            tmp.delete();
+            System.err.println("WARNING: Could not write cache entry: " + ex.toString());
+        }
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns a visitor that prints the cached results of a method if
+     * there are any, and otherwise runs the given visitor and caches
+     * what it prints.  Nothing is cached if it throws.  For the
+     * sequential Helper.runPass; ParallelDriver uses get and put.
+     */
+    public ControlFlowGraphVisitor wrap(final ControlFlowGraphVisitor visitor) {
+        return new ControlFlowGraphVisitor() {
+            public void visitCFG(ControlFlowGraph cfg) {
+                String key = keyOf(cfg);
+                byte[] cached = get(key);
+                if (cached != null) {
+                    System.out.write(cached, 0, cached.length);
+                    System.out.flush();
+                    return;
+                }
+                PrintStream console = System.out;
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                System.setOut(new PrintStream(new TeeStream(console, buffer), true));
+                try {
+                    visitor.visitCFG(cfg);
+                } finally {
+                    System.out.flush();
+                    System.setOut(console);
+                }
+                put(key, buffer.toByteArray());
+            }
+        };
+    }
+
+    private File fileOf(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key.substring(2));
+    }
+
+    private static void digestClass(MessageDigest md, Class<?> c) {
+        for (; c != null && c != Object.class; c = c.getSuperclass()) {
+            update(md, c.getName());
+            InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class");
+            if (in == null)
+                continue;
+            try {
+                try {
+                    byte[] buf = new byte[8192];
+                    for (int n; (n = in.read(buf)) > 0; )
+                        md.update(buf, 0, n);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) > 0; )
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void update(MessageDigest md, String s) {
+        try {
+            md.update(s.getBytes("UTF-8"));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        md.update((byte) 0);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Writes to the console and keeps a copy.
+     */
+    private static class TeeStream extends OutputStream {
+        private final OutputStream console;
+        private final ByteArrayOutputStream copy;
+
+        TeeStream(OutputStream console, ByteArrayOutputStream copy) {
+            this.console = console;
+            this.copy = copy;
+        }
+
+        public void write(int b) {
+            copy.write(b);
+            try {
+                console.write(b);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        public void write(byte[] b, int off, int len) {
+            copy.write(b, off, len);
+            try {
+                console.write(b, off, len);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        public void flush() throws IOException {
+            console.flush();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What one solver run on one method cost: how often the solver went
+ * over the quads, how many transfer functions, meets and equals it
+ * evaluated, the time spent in preprocess, in the solve itself and in
+ * postprocess, and the bytes the thread allocated meanwhile.
+ * <p>
+ * Solvers implementing Flow.InstrumentedSolver create one per
+ * visitCFG.  Keeping the numbers costs a few counter increments per
+ * quad and two clock and allocation counter reads per phase, so they
+ * are always on.  What "iterations" means depends on the solver: the
+ * passes over all quads for FlowSolver, the sweeps through the order
+ * for the worklist solvers (a sweep ends whenever the worklist goes
+ * back to an earlier quad), and so on.
+ * <p>
+ * Run Flow or Optimize with -Dflow.stats=csv or -Dflow.stats=json to
+ * get the numbers of every method, on System.err or in the file named
+ * by -Dflow.stats.file.
+ */
+public class SolverStats {
+
+    private final String method, solver, analysis;
+    long iterations, transfers, meets, equals;
+    private long preprocessTime, solveTime, postprocessTime;
+    private long allocatedBytes;
+    private long mark, bytesMark;
+
+    /**
+     * Starts the clock: call right before preprocess.
+     */
+    SolverStats(ControlFlowGraph cfg, Flow.Solver solver, Flow.Analysis analysis) {
+        this.method = cfg.getMethod().getDeclaringClass().getName() + "." + cfg.getMethod().getName();
+        this.solver = solver.getClass().getName();
+        this.analysis = analysis.getClass().getName();
+        bytesMark = threadAllocatedBytes();
+        mark = System.nanoTime();
+    }
+
+    void preprocessDone() {
+        long now = System.nanoTime();
+        preprocessTime = now - mark;
+        mark = now;
+    }
+
+    void solveDone() {
+        long now = System.nanoTime();
+        solveTime = now - mark;
+        mark = now;
+    }
+
+    void postprocessDone() {
+        postprocessTime = System.nanoTime() - mark;
+        long bytes = threadAllocatedBytes();
+        allocatedBytes = bytes < 0 || bytesMark < 0 ? -1 : bytes - bytesMark;
+    }
+
+    /**
+     * Returns the declaring class and name of the method, e.g.
+     * "test.QuickSort.sort".
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public String getSolver() {
+        return solver;
+    }
+
+    public String getAnalysis() {
+        return analysis;
+    }
+
+    public long getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Returns the number of transfer functions applied, through
+     * processQuad or Flow.TransferAnalysis.transfer.
+     */
+    public long getTransfers() {
+        return transfers;
+    }
+
+    public long getMeets() {
+        return meets;
+    }
+
+    public long getEquals() {
+        return equals;
+    }
+
+    /* Times are in nanoseconds */
+
+    public long getPreprocessTime() {
+        return preprocessTime;
+    }
+
+    public long getSolveTime() {
+        return solveTime;
+    }
+
+    public long getPostprocessTime() {
+        return postprocessTime;
+    }
+
+    /**
+     * Returns the bytes allocated by the solving thread from the start
+     * of preprocess to the end of postprocess, or -1 if the JVM does
+     * not count them.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public static final String CSV_HEADER = "method,solver,analysis,iterations,transfers,meets,equals,"
+            + "preprocess_ns,solve_ns,postprocess_ns,allocated_bytes";
+
+    public String toCsv() {
+        return method + "," + solver + "," + analysis + "," + iterations + "," + transfers + ","
+                + meets + "," + equals + "," + preprocessTime + "," + solveTime + ","
+                + postprocessTime + "," + allocatedBytes;
+    }
+
+    public String toJson() {
+        return "{\"method\": \"" + method + "\", \"solver\": \"" + solver
+                + "\", \"analysis\": \"" + analysis + "\", \"iterations\": " + iterations
+                + ", \"transfers\": " + transfers + ", \"meets\": " + meets
+                + ", \"equals\": " + equals + ", \"preprocess_ns\": " + preprocessTime
+                + ", \"solve_ns\": " + solveTime + ", \"postprocess_ns\": " + postprocessTime
+                + ", \"allocated_bytes\": " + allocatedBytes + "}";
+    }
+
+    @Override
+    public String toString() {
+        return toCsv();
+    }
+
+    private static final Object threadBean = ManagementFactory.getThreadMXBean();
+    private static final Method getThreadAllocatedBytes = findAllocationCounter();
+
+    /**
+     * The allocation counter is HotSpot's extension of ThreadMXBean,
+     * so it is looked up by name.
+     */
+    private static Method findAllocationCounter() {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (!c.isInstance(threadBean))
+                return null;
+            return c.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the bytes the current thread allocated so far, or -1.
+     */
+    static long threadAllocatedBytes() {
+        if (getThreadAllocatedBytes == null)
+            return -1;
+        try {
+            return (Long) getThreadAllocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * The statistics of a run over many methods, in the order they
+     * were added.  Safe to add to from several threads.
+     */
+    public static class Log {
+        private final List<SolverStats> entries = new ArrayList<SolverStats>();
+        private final String format;
+
+        /**
+         * @param format "csv" or "json"
+         */
+        public Log(String format) {
+            if (!format.equals("csv") && !format.equals("json"))
+                throw new IllegalArgumentException("unknown stats format '" + format + "'");
+            this.format = format;
+        }
+
+        /**
+         * Returns a log in the format -Dflow.stats asks for, or null
+         * if it is not set.
+         */
+        public static Log fromProperties() {
+            String format = System.getProperty("flow.stats");
+            return format == null ? null : new Log(format);
+        }
+
+        public synchronized void add(SolverStats stats) {
+            if (stats != null)
+                entries.add(stats);
+        }
+
+        public synchronized List<SolverStats> getEntries() {
+            return new ArrayList<SolverStats>(entries);
+        }
+
+        /**
+         * Returns a visitor that runs the solver and adds the
+         * statistics of every CFG it visits, if it keeps any.
+         */
+        public ControlFlowGraphVisitor watch(final Flow.Solver solver) {
+            return new ControlFlowGraphVisitor() {
+                public void visitCFG(ControlFlowGraph cfg) {
+                    solver.visitCFG(cfg);
+                    if (solver instanceof Flow.InstrumentedSolver)
+                        add(((Flow.InstrumentedSolver) solver).getStats());
+                }
+            };
+        }
+
+        public synchronized void write(PrintStream out) {
+            if (format.equals("csv")) {
+                out.println(CSV_HEADER);
+                for (SolverStats s : entries)
+                    out.println(s.toCsv());
+            } else {
+                out.println("[");
+                for (int i = 0; i < entries.size(); i++)
+                    out.println("  " + entries.get(i).toJson() + (i + 1 < entries.size() ? "," : ""));
+                out.println("]");
+            }
+            out.flush();
+        }
+
+        /**
+         * Writes the log to the file named by -Dflow.stats.file, or
+         * to System.err.
+         */
+        public void dump() throws IOException {
+            String file = System.getProperty("flow.stats.file");
+            if (file == null) {
+                write(System.err);
+                return;
+            }
+            PrintStream out = new PrintStream(new FileOutputStream(file));
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
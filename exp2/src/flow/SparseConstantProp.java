@@ -0,0 +1,536 @@
+package flow;
+
+import joeq.Compiler.Quad.BasicBlock;
+import joeq.Compiler.Quad.CodeCache;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Dominators;
+import joeq.Compiler.Quad.Dominators.DominatorNode;
+import joeq.Compiler.Quad.Quad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Solver for ConstantProp that works on SSA form instead of on per-quad
+ * tables.
+ * <p>
+ * The CFG is put into SSA form first: phis are placed on the iterated
+ * dominance frontiers of the definitions, using the dominator tree of
+ * joeq's Dominators, and every use is renamed to the definition that
+ * reaches it.  Lattice values are then kept once per definition and
+ * propagated along def-use edges only, so the fixpoint takes time in
+ * the number of definitions and uses, not quads times registers.  The
+ * IN/OUT tables postprocess prints are filled in from the SSA values
+ * once the fixpoint is reached; the results are the same as those of
+ * the dense solvers.
+ * <p>
+ * Phis sit at the first quad of a basic block and have one operand per
+ * quad-level predecessor, as QuadIterator reports them.  That includes
+ * the quads in the middle of a block that may throw into an exception
+ * handler, so a register defined anywhere in such a block also gets a
+ * phi at the handler.
+ * <p>
+ * Dominators computes on CodeCache's CFG of the method, which must be
+ * the CFG visited.  Register it with a flow.ConstantProp:
+ * "Flow flow.SparseConstantProp flow.ConstantProp test-class".
+ */
+public class SparseConstantProp implements Flow.InstrumentedSolver {
+
+    protected ConstantProp analysis;
+    private SolverStats stats;
+
+    private AnalysisContext ctx;
+    private int registers;
+
+    /* The dominator tree, by block ID */
+    private BasicBlock[] blocks;
+    private int[] idom;
+    /**
+     * Block IDs in preorder of the dominator tree; the subtree of the
+     * block at position p covers the positions p up to end[p].
+     */
+    private int[] preorder, end;
+    private int[] position;
+
+    /* The quads, by quad ID */
+    private int[] blockOf;
+    private boolean[] isHead;
+
+    /* The phis, and the phis of every block */
+    private IntList phiReg, phiBlock;
+    private int[][] phiOperands;
+    private int[][] phisAt;
+
+    /**
+     * SSA values are numbered: first the value every register has at
+     * the entry, then the definitions of the quads, then the phis.
+     */
+    private int[] firstDef;
+    private int phiBase;
+    /**
+     * The values a quad reads, by quad ID: those of its uses, then
+     * the incoming values of the registers it defines (a quad the
+     * transfer function does not know leaves them as they are).
+     */
+    private int[][] inputs;
+    private byte[] state;
+    private int[] constant;
+
+    /**
+     * Sets the analysis.  When visitCFG is called, it will
+     * perform this analysis on a given CFG.
+     *
+     * @param analyzer The analysis to run; must be a flow.ConstantProp
+     */
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        if (!(analyzer instanceof ConstantProp))
+            throw new IllegalArgumentException(analyzer.getClass().getName()
+                    + " is not a flow.ConstantProp");
+        this.analysis = (ConstantProp) analyzer;
+    }
+
+    /**
+     * Returns the statistics of the last visitCFG.  There is a single
+     * propagation; transfers count the evaluations of quads, meets the
+     * phi operands met and equals the values compared.
+     */
+    public SolverStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Runs the solver over a given control flow graph.  Prior
+     * to calling this, an analysis must be registered using
+     * registerAnalysis
+     *
+     * @param cfg The control flow graph to analyze.
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        if (CodeCache.getCode(cfg.getMethod()) != cfg)
+            throw new IllegalArgumentException("not the CodeCache CFG of " + cfg.getMethod());
+
+        stats = new SolverStats(cfg, this, analysis);
+        // this needs to come first.
+        analysis.preprocess(cfg);
+        stats.preprocessDone();
+
+        ctx = AnalysisContext.of(cfg);
+        registers = ctx.getRegisters().size();
+        buildDominatorTree(cfg);
+        placePhis();
+        walk(false);
+        stats.iterations++;
+        propagate();
+        walk(true);
+
+        Flow.DataflowObject exit = analysis.viewExit();
+        exit.setToTop();
+        QuadOrder quads = ctx.getOrder(true);
+        stats.meets += quads.boundary.length;
+        for (int i : quads.boundary)
+            exit.meetWith(analysis.viewOut(quads.order[i]));
+
+        ctx = null;
+        blocks = null;
+        phiOperands = null;
+        inputs = null;
+        stats.solveDone();
+
+        // this needs to come last.
+        analysis.postprocess(cfg);
+        stats.postprocessDone();
+    }
+
+    /**
+     * Computes the dominator tree and numbers it in preorder, and
+     * records the block of every quad.
+     */
+    private void buildDominatorTree(ControlFlowGraph cfg) {
+        Dominators dominators = new Dominators(true);
+        dominators.visitMethod(cfg.getMethod());
+        DominatorNode root = dominators.computeTree();
+
+        int n = cfg.getNumberOfBasicBlocks();
+        blocks = new BasicBlock[n];
+        idom = new int[n];
+        position = new int[n];
+        Arrays.fill(position, -1);
+        List<DominatorNode> nodes = new ArrayList<DominatorNode>();
+        List<DominatorNode> stack = new ArrayList<DominatorNode>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            DominatorNode node = stack.remove(stack.size() - 1);
+            int b = node.getBasicBlock().getID();
+            blocks[b] = node.getBasicBlock();
+            idom[b] = node.getParent() == null ? -1 : node.getParent().getBasicBlock().getID();
+            position[b] = nodes.size();
+            nodes.add(node);
+            for (int i = node.getNumberOfChildren() - 1; i >= 0; i--)
+                stack.add(node.getChild(i));
+        }
+        preorder = new int[nodes.size()];
+        end = new int[nodes.size()];
+        for (int p = nodes.size() - 1; p >= 0; p--) {
+            DominatorNode node = nodes.get(p);
+            preorder[p] = node.getBasicBlock().getID();
+            end[p] = p + 1;
+            for (DominatorNode child : node.getChildren())
+                end[p] = Math.max(end[p], end[position[child.getBasicBlock().getID()]]);
+        }
+
+        blockOf = new int[ctx.getMaxID()];
+        Arrays.fill(blockOf, -1);
+        isHead = new boolean[ctx.getMaxID()];
+        for (int b : preorder) {
+            BasicBlock bb = blocks[b];
+            for (int i = 0; i < bb.size(); i++) {
+                int id = bb.getQuad(i).getID();
+                blockOf[id] = b;
+                isHead[id] = i == 0;
+            }
+        }
+        for (Quad q : ctx.getQuads())
+            if (blockOf[q.getID()] < 0)
+                throw new IllegalStateException("quad " + q.getID() + " is not in the dominator tree");
+    }
+
+    /**
+     * Returns true if block a strictly dominates block b.
+     */
+    private boolean strictlyDominates(int a, int b) {
+        int pa = position[a], pb = position[b];
+        return pa != pb && pa <= pb && pb < end[pa];
+    }
+
+    private boolean isHead(int id) {
+        return id >= 0 && id < isHead.length && ctx.isVisited(id) && isHead[id];
+    }
+
+    /**
+     * Places the phis: Cytron et al.'s iterated dominance frontiers,
+     * with the frontiers computed as by Cooper, Harvey and Kennedy
+     * from the quad-level edges.
+     */
+    private void placePhis() {
+        int n = blocks.length;
+        BitSet[] frontier = new BitSet[n];
+        for (Quad h : ctx.getQuads()) {
+            if (!isHead[h.getID()])
+                continue;
+            int y = blockOf[h.getID()];
+            for (int p : ctx.getPredecessors(h.getID())) {
+                if (!ctx.isVisited(p))
+                    continue;
+                int x = blockOf[p];
+                if (blocks[x].getLastQuad().getID() != p)
+                    frontier(frontier, x).set(y);
+                for (; x >= 0 && !strictlyDominates(x, y); x = idom[x])
+                    frontier(frontier, x).set(y);
+            }
+        }
+
+        // the blocks defining every register
+        int[] count = new int[registers + 1];
+        for (Quad q : ctx.getQuads())
+            for (int r : ctx.getDefs(q))
+                count[r + 1]++;
+        for (int r = 0; r < registers; r++)
+            count[r + 1] += count[r];
+        int[] defBlocks = new int[count[registers]];
+        int[] next = count.clone();
+        for (Quad q : ctx.getQuads())
+            for (int r : ctx.getDefs(q))
+                defBlocks[next[r]++] = blockOf[q.getID()];
+
+        phiReg = new IntList();
+        phiBlock = new IntList();
+        int[] queued = new int[n], placed = new int[n];
+        Arrays.fill(queued, -1);
+        Arrays.fill(placed, -1);
+        IntList work = new IntList();
+        for (int r = 0; r < registers; r++) {
+            for (int i = count[r]; i < count[r + 1]; i++) {
+                int b = defBlocks[i];
+                if (queued[b] != r) {
+                    queued[b] = r;
+                    work.add(b);
+                }
+            }
+            while (work.size > 0) {
+                BitSet f = frontier[work.pop()];
+                if (f == null)
+                    continue;
+                for (int y = f.nextSetBit(0); y >= 0; y = f.nextSetBit(y + 1)) {
+                    if (placed[y] == r)
+                        continue;
+                    placed[y] = r;
+                    phiReg.add(r);
+                    phiBlock.add(y);
+                    if (queued[y] != r) {
+                        queued[y] = r;
+                        work.add(y);
+                    }
+                }
+            }
+        }
+
+        int[] perBlock = new int[n];
+        for (int p = 0; p < phiBlock.size; p++)
+            perBlock[phiBlock.get(p)]++;
+        phisAt = new int[n][];
+        for (int b = 0; b < n; b++)
+            phisAt[b] = new int[perBlock[b]];
+        Arrays.fill(perBlock, 0);
+        for (int p = 0; p < phiBlock.size; p++) {
+            int b = phiBlock.get(p);
+            phisAt[b][perBlock[b]++] = p;
+        }
+    }
+
+    private static BitSet frontier(BitSet[] frontier, int b) {
+        if (frontier[b] == null)
+            frontier[b] = new BitSet();
+        return frontier[b];
+    }
+
+    /**
+     * Walks the dominator tree in preorder, keeping the SSA value of
+     * every register at the current quad.  The first walk renames:
+     * it numbers the definitions and records the inputs of the quads
+     * and the operands of the phis.  The second one fills in the IN
+     * and OUT tables of the analysis.
+     */
+    private void walk(boolean fill) {
+        int maxID = ctx.getMaxID();
+        if (!fill) {
+            firstDef = new int[maxID];
+            int v = registers;
+            for (Quad q : ctx.getQuads()) {
+                firstDef[q.getID()] = v;
+                v += ctx.getDefs(q).length;
+            }
+            phiBase = v;
+            inputs = new int[maxID][];
+            phiOperands = new int[phiReg.size][];
+            for (int p = 0; p < phiReg.size; p++) {
+                int[] preds = ctx.getPredecessors(blocks[phiBlock.get(p)].getQuad(0).getID());
+                phiOperands[p] = new int[preds.length];
+                for (int j = 0; j < preds.length; j++)
+                    phiOperands[p][j] = preds[j] < 0 ? phiReg.get(p) : -1;
+            }
+        }
+
+        int[] current = new int[registers];
+        for (int r = 0; r < registers; r++)
+            current[r] = r;
+        IntList undo = new IntList();
+        int[] frameEnd = new int[preorder.length], frameMark = new int[preorder.length];
+        int sp = 0;
+        for (int i = 0; i < preorder.length; i++) {
+            while (sp > 0 && frameEnd[sp - 1] <= i) {
+                sp--;
+                while (undo.size > frameMark[sp]) {
+                    int old = undo.pop();
+                    current[undo.pop()] = old;
+                }
+            }
+            frameEnd[sp] = end[i];
+            frameMark[sp++] = undo.size;
+
+            int b = preorder[i];
+            for (int p : phisAt[b])
+                define(current, undo, phiReg.get(p), phiBase + p);
+            BasicBlock bb = blocks[b];
+            for (int k = 0; k < bb.size(); k++) {
+                Quad q = bb.getQuad(k);
+                int id = q.getID();
+                if (!ctx.isVisited(id))
+                    continue;
+                int[] uses = ctx.getUses(q), defs = ctx.getDefs(q);
+                if (fill) {
+                    fillTable(analysis.viewIn(q), current);
+                } else if (defs.length > 0) {
+                    int[] in = new int[uses.length + defs.length];
+                    for (int j = 0; j < uses.length; j++)
+                        in[j] = current[uses[j]];
+                    for (int j = 0; j < defs.length; j++)
+                        in[uses.length + j] = current[defs[j]];
+                    inputs[id] = in;
+                }
+                for (int j = 0; j < defs.length; j++)
+                    define(current, undo, defs[j], firstDef[id] + j);
+                if (fill)
+                    fillTable(analysis.viewOut(q), current);
+                else
+                    fillOperands(id, current);
+            }
+        }
+    }
+
+    private static void define(int[] current, IntList undo, int r, int value) {
+        undo.add(r);
+        undo.add(current[r]);
+        current[r] = value;
+    }
+
+    /**
+     * Gives the phis of the blocks the quad flows into the values
+     * leaving the quad.
+     */
+    private void fillOperands(int id, int[] current) {
+        for (int s : ctx.getSuccessors(id)) {
+            if (!isHead(s))
+                continue;
+            int[] phis = phisAt[blockOf[s]];
+            if (phis.length == 0)
+                continue;
+            int[] preds = ctx.getPredecessors(s);
+            for (int j = 0; j < preds.length; j++) {
+                if (preds[j] != id)
+                    continue;
+                for (int p : phis)
+                    phiOperands[p][j] = current[phiReg.get(p)];
+            }
+        }
+    }
+
+    private void fillTable(Flow.DataflowObject o, int[] current) {
+        ConstantProp.ConstantPropTable table = (ConstantProp.ConstantPropTable) o;
+        for (int r = 0; r < registers; r++)
+            table.set(r, state[current[r]], constant[current[r]]);
+    }
+
+    /**
+     * Finds the SSA values: every phi and defining quad is evaluated
+     * once, then again whenever one of its inputs changes.
+     */
+    private void propagate() {
+        int maxID = ctx.getMaxID();
+        int values = phiBase + phiReg.size;
+        state = new byte[values];
+        constant = new int[values];
+        ConstantProp.ConstantPropTable entry = (ConstantProp.ConstantPropTable) analysis.viewEntry();
+        for (int r = 0; r < registers; r++) {
+            state[r] = entry.stateOf(r);
+            constant[r] = entry.constantOf(r);
+        }
+
+        // def-use edges; users are quad IDs, or maxID + p for phi p
+        int[] start = new int[values + 1];
+        for (Quad q : ctx.getQuads())
+            if (inputs[q.getID()] != null)
+                for (int v : inputs[q.getID()])
+                    start[v + 1]++;
+        for (int[] operands : phiOperands)
+            for (int v : operands)
+                if (v >= 0)
+                    start[v + 1]++;
+        for (int v = 0; v < values; v++)
+            start[v + 1] += start[v];
+        int[] users = new int[start[values]];
+        int[] next = start.clone();
+        for (Quad q : ctx.getQuads())
+            if (inputs[q.getID()] != null)
+                for (int v : inputs[q.getID()])
+                    users[next[v]++] = q.getID();
+        for (int p = 0; p < phiOperands.length; p++)
+            for (int v : phiOperands[p])
+                if (v >= 0)
+                    users[next[v]++] = maxID + p;
+
+        ConstantProp.ConstantPropTable scratch =
+                (ConstantProp.ConstantPropTable) analysis.newTempVar();
+        boolean[] pending = new boolean[maxID + phiReg.size];
+        IntList work = new IntList();
+        // the first round goes forward, so that most inputs are
+        // already known when a quad is evaluated
+        Quad[] quads = ctx.getQuads();
+        for (int i = quads.length - 1; i >= 0; i--) {
+            int id = quads[i].getID();
+            if (inputs[id] != null) {
+                work.add(id);
+                pending[id] = true;
+            }
+            if (isHead[id])
+                for (int p : phisAt[blockOf[id]]) {
+                    work.add(maxID + p);
+                    pending[maxID + p] = true;
+                }
+        }
+        while (work.size > 0) {
+            int node = work.pop();
+            pending[node] = false;
+            if (node >= maxID) {
+                int p = node - maxID;
+                byte s = ConstantProp.UNDEF;
+                int c = 0;
+                stats.meets += phiOperands[p].length;
+                for (int v : phiOperands[p]) {
+                    if (v < 0 || state[v] == ConstantProp.UNDEF || s == ConstantProp.NAC)
+                        continue;
+                    if (s == ConstantProp.UNDEF) {
+                        s = state[v];
+                        c = constant[v];
+                    } else if (state[v] == ConstantProp.NAC || constant[v] != c) {
+                        s = ConstantProp.NAC;
+                    }
+                }
+                update(phiBase + p, s, c, start, users, work, pending);
+                continue;
+            }
+            Quad q = ctx.getQuad(node);
+            int[] in = inputs[node], uses = ctx.getUses(q), defs = ctx.getDefs(q);
+            for (int j = 0; j < uses.length; j++)
+                scratch.set(uses[j], state[in[j]], constant[in[j]]);
+            for (int j = 0; j < defs.length; j++)
+                scratch.set(defs[j], state[in[uses.length + j]], constant[in[uses.length + j]]);
+            analysis.transfer(q, scratch);
+            stats.transfers++;
+            for (int j = 0; j < defs.length; j++)
+                update(firstDef[node] + j, scratch.stateOf(defs[j]), scratch.constantOf(defs[j]),
+                        start, users, work, pending);
+        }
+    }
+
+    private void update(int v, byte s, int c, int[] start, int[] users, IntList work, boolean[] pending) {
+        stats.equals++;
+        if (state[v] == s && (s != ConstantProp.CONST || constant[v] == c))
+            return;
+        state[v] = s;
+        constant[v] = c;
+        for (int i = start[v]; i < start[v + 1]; i++) {
+            int u = users[i];
+            if (!pending[u]) {
+                pending[u] = true;
+                work.add(u);
+            }
+        }
+    }
+
+    /**
+     * A growable array of ints, used as a list and as a stack.
+     */
+    private static class IntList {
+        int[] data = new int[16];
+        int size;
+
+        void add(int x) {
+            if (size == data.length) {
+                int[] grown = new int[2 * size];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+            data[size++] = x;
+        }
+
+        int get(int i) {
+            return data[i];
+        }
+
+        int pop() {
+            return data[--size];
+        }
+    }
+}
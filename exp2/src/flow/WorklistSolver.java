@@ -0,0 +1,136 @@
+package flow;
+
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+
+import java.util.BitSet;
+
+/**
+ * Worklist implementation of the Flow.Solver interface.
+ * <p>
+ * Quads are numbered in reverse postorder (reverse postorder of the
+ * reversed CFG for backward analyses), and a quad is only processed
+ * again when the value flowing into it may have changed.  It reaches
+ * the same fixpoint as FlowSolver, so the output is identical.
+ */
+public class WorklistSolver implements Flow.InstrumentedSolver {
+
+    protected Flow.Analysis analysis;
+    private SolverStats stats;
+
+    /**
+     * Sets the analysis.  When visitCFG is called, it will
+     * perform this analysis on a given CFG.
+     *
+     * @param analyzer The analysis to run
+     */
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        this.analysis = analyzer;
+    }
+
+    /**
+     * Returns the statistics of the last visitCFG.
+     */
+    public SolverStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Runs the solver over a given control flow graph.  Prior
+     * to calling this, an analysis must be registered using
+     * registerAnalysis
+     *
+     * @param cfg The control flow graph to analyze.
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        stats = new SolverStats(cfg, this, analysis);
+        // this needs to come first.
+        analysis.preprocess(cfg);
+        stats.preprocessDone();
+
+        boolean forward = analysis.isForward();
+        QuadOrder quads = AnalysisContext.of(cfg).getOrder(forward);
+
+        BitSet pending = new BitSet(quads.size());
+        pending.set(0, quads.size());
+        int last = Integer.MAX_VALUE;
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(0)) {
+            pending.clear(i);
+            if (i <= last)
+                stats.iterations++;
+            last = i;
+            Quad quad = quads.order[i];
+            if (forward)
+                analysis.setIn(quad, computeConfluence(quads.upstream[i], true));
+            else
+                analysis.setOut(quad, computeConfluence(quads.upstream[i], false));
+            if (transfer(quad, forward)) {
+                for (int s : quads.downstream[i])
+                    pending.set(s);
+            }
+        }
+
+        // Nothing inside the CFG reads the far boundary, so it is
+        // computed once from the converged values.
+        Flow.DataflowObject temp = analysis.newTempVar();
+        stats.meets += quads.boundary.length;
+        for (int i : quads.boundary) {
+            if (forward)
+                temp.meetWith(analysis.getOut(quads.order[i]));
+            else
+                temp.meetWith(analysis.getIn(quads.order[i]));
+        }
+        if (forward)
+            analysis.setExit(temp);
+        else
+            analysis.setEntry(temp);
+        stats.solveDone();
+
+        // this needs to come last.
+        analysis.postprocess(cfg);
+        stats.postprocessDone();
+    }
+
+    /**
+     * Computes the meet over all predecessors/successors
+     */
+    private Flow.DataflowObject computeConfluence(Quad[] quads, boolean direction) {
+        Flow.DataflowObject temp = analysis.newTempVar();
+        stats.meets += quads.length;
+        for (Quad P : quads)
+            if (P != null) {
+                if (direction)
+                    temp.meetWith(analysis.getOut(P));
+                else
+                    temp.meetWith(analysis.getIn(P));
+            } else {
+                if (direction)
+                    temp.meetWith(analysis.getEntry());
+                else
+                    temp.meetWith(analysis.getExit());
+            }
+        return temp;
+    }
+
+    /**
+     * Processes a quad in the specified direction.
+     * Return value is true if changes were made
+     */
+    private boolean transfer(Quad quad, boolean direction) {
+        Flow.DataflowObject original, modified;
+        if (direction)
+            original = analysis.getOut(quad);
+        else
+            original = analysis.getIn(quad);
+        analysis.processQuad(quad);
+        stats.transfers++;
+
+        if (direction)
+            modified = analysis.getOut(quad);
+        else
+            modified = analysis.getIn(quad);
+
+        stats.equals++;
+        return !modified.equals(original);
+    }
+}
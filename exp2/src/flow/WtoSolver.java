@@ -0,0 +1,437 @@
+package flow;
+
+import joeq.Class.jq_Class;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+import joeq.Main.Helper;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Implementation of the Flow.Solver interface that follows a weak
+ * topological ordering of the quads (Bourdoncle, "Efficient chaotic
+ * iteration strategies with widenings", 1993).
+ * <p>
+ * A weak topological ordering nests every loop of the CFG into a
+ * component headed by the loop's entry quad.  Quads outside loops are
+ * processed once, in order; a component is processed by running its
+ * head and then its body over and over until the head's value stops
+ * changing, stabilizing every inner component on each round before
+ * moving on.  An outer loop therefore never re-sweeps an inner loop
+ * that is already stable.
+ * <p>
+ * The component heads are the points where a widening would go: every
+ * cycle of the CFG passes through one.  The lattices in this package
+ * all have finite height, so none of them widens; getLoopHeads()
+ * exposes the heads for analyses that want to.
+ */
+public class WtoSolver implements Flow.InstrumentedSolver {
+
+    protected Flow.Analysis analysis;
+    private SolverStats stats;
+
+    private QuadOrder quads;
+    /**
+     * The quads (indices into quads.order) in weak topological order.
+     * A component starts at its head h = sequence[p] and covers the
+     * positions p up to (not including) end[p].
+     */
+    private int[] sequence;
+    private int[] end;
+    private boolean[] isHead;
+    private List<Quad> loopHeads;
+
+    /**
+     * Sets the analysis.  When visitCFG is called, it will
+     * perform this analysis on a given CFG.
+     *
+     * @param analyzer The analysis to run
+     */
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        this.analysis = analyzer;
+    }
+
+    /**
+     * Returns the statistics of the last visitCFG.  The iterations
+     * are the rounds: one over the whole ordering, plus every round
+     * over a component.
+     */
+    public SolverStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Runs the solver over a given control flow graph.  Prior
+     * to calling this, an analysis must be registered using
+     * registerAnalysis
+     *
+     * @param cfg The control flow graph to analyze.
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        stats = new SolverStats(cfg, this, analysis);
+        // this needs to come first.
+        analysis.preprocess(cfg);
+        stats.preprocessDone();
+
+        boolean forward = analysis.isForward();
+        quads = AnalysisContext.of(cfg).getOrder(forward);
+        buildOrder();
+
+        stats.iterations++;
+        stabilize(0, sequence.length, forward);
+
+        Flow.DataflowObject temp = analysis.newTempVar();
+        stats.meets += quads.boundary.length;
+        for (int i : quads.boundary) {
+            if (forward)
+                temp.meetWith(analysis.getOut(quads.order[i]));
+            else
+                temp.meetWith(analysis.getIn(quads.order[i]));
+        }
+        if (forward)
+            analysis.setExit(temp);
+        else
+            analysis.setEntry(temp);
+
+        quads = null;
+        stats.solveDone();
+
+        // this needs to come last.
+        analysis.postprocess(cfg);
+        stats.postprocessDone();
+    }
+
+    /**
+     * Compares the number of transfer evaluations (processQuad calls)
+     * of FlowSolver and WtoSolver on every method of the given
+     * classes.  The analysis results themselves are not printed.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("USAGE: WtoSolver analysis-class [test-class]+");
+            return;
+        }
+        Class<?> analysisClass = Class.forName(args[0]);
+
+        PrintStream console = System.out;
+        PrintStream discard = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        long flowTotal = 0, wtoTotal = 0;
+        for (int i = 1; i < args.length; i++) {
+            jq_Class clazz = (jq_Class) Helper.load(args[i]);
+            console.println("Now analyzing " + clazz.getName());
+            for (ControlFlowGraph cfg : ParallelDriver.buildCFGs(clazz)) {
+                CountingAnalysis flow = new CountingAnalysis((Flow.Analysis) analysisClass.newInstance());
+                CountingAnalysis wto = new CountingAnalysis((Flow.Analysis) analysisClass.newInstance());
+                WtoSolver wtoSolver = new WtoSolver();
+                FlowSolver flowSolver = new FlowSolver();
+                flowSolver.registerAnalysis(flow);
+                wtoSolver.registerAnalysis(wto);
+                System.setOut(discard);
+                try {
+                    flowSolver.visitCFG(cfg);
+                    wtoSolver.visitCFG(cfg);
+                } finally {
+                    System.setOut(console);
+                }
+                console.println(cfg.getMethod().getName() + ": FlowSolver " + flow.transfers
+                        + ", WtoSolver " + wto.transfers
+                        + " (" + wtoSolver.getLoopHeads().size() + " loop heads), saved "
+                        + (flow.transfers - wto.transfers));
+                flowTotal += flow.transfers;
+                wtoTotal += wto.transfers;
+            }
+        }
+        console.println("total: FlowSolver " + flowTotal + ", WtoSolver " + wtoTotal
+                + ", saved " + (flowTotal - wtoTotal));
+    }
+
+    /**
+     * Passes everything on to an analysis, counting processQuad calls.
+     */
+    private static class CountingAnalysis implements Flow.Analysis {
+        private final Flow.Analysis analysis;
+        long transfers;
+
+        CountingAnalysis(Flow.Analysis analysis) {
+            this.analysis = analysis;
+        }
+
+        public void preprocess(ControlFlowGraph cfg) {
+            analysis.preprocess(cfg);
+        }
+
+        public void postprocess(ControlFlowGraph cfg) {
+            analysis.postprocess(cfg);
+        }
+
+        public boolean isForward() {
+            return analysis.isForward();
+        }
+
+        public Flow.DataflowObject getEntry() {
+            return analysis.getEntry();
+        }
+
+        public void setEntry(Flow.DataflowObject value) {
+            analysis.setEntry(value);
+        }
+
+        public Flow.DataflowObject getExit() {
+            return analysis.getExit();
+        }
+
+        public void setExit(Flow.DataflowObject value) {
+            analysis.setExit(value);
+        }
+
+        public Flow.DataflowObject getIn(Quad q) {
+            return analysis.getIn(q);
+        }
+
+        public Flow.DataflowObject getOut(Quad q) {
+            return analysis.getOut(q);
+        }
+
+        public void setIn(Quad q, Flow.DataflowObject value) {
+            analysis.setIn(q, value);
+        }
+
+        public void setOut(Quad q, Flow.DataflowObject value) {
+            analysis.setOut(q, value);
+        }
+
+        public Flow.DataflowObject newTempVar() {
+            return analysis.newTempVar();
+        }
+
+        public void processQuad(Quad q) {
+            transfers++;
+            analysis.processQuad(q);
+        }
+    }
+
+    /**
+     * Returns the heads of the components of the last CFG visited, in
+     * weak topological order.  A widening applied at these quads is
+     * enough to make every cycle terminate.
+     */
+    public List<Quad> getLoopHeads() {
+        return Collections.unmodifiableList(loopHeads);
+    }
+
+    /**
+     * Processes the positions from up to (not including) to until
+     * they are stable.
+     */
+    private void stabilize(int from, int to, boolean forward) {
+        for (int p = from; p < to; p = end[p]) {
+            if (!isHead[p]) {
+                transfer(sequence[p], forward);
+                continue;
+            }
+            transfer(sequence[p], forward);
+            do {
+                stats.iterations++;
+                stabilize(p + 1, end[p], forward);
+            } while (transfer(sequence[p], forward));
+        }
+    }
+
+    /**
+     * Recomputes the value flowing into quads.order[i] and processes
+     * it.  Return value is true if the value it produces changed.
+     */
+    private boolean transfer(int i, boolean forward) {
+        Quad quad = quads.order[i];
+        Flow.DataflowObject temp = analysis.newTempVar();
+        stats.meets += quads.upstream[i].length;
+        for (Quad P : quads.upstream[i])
+            if (P != null) {
+                if (forward)
+                    temp.meetWith(analysis.getOut(P));
+                else
+                    temp.meetWith(analysis.getIn(P));
+            } else {
+                if (forward)
+                    temp.meetWith(analysis.getEntry());
+                else
+                    temp.meetWith(analysis.getExit());
+            }
+
+        Flow.DataflowObject original;
+        if (forward) {
+            analysis.setIn(quad, temp);
+            original = analysis.getOut(quad);
+        } else {
+            analysis.setOut(quad, temp);
+            original = analysis.getIn(quad);
+        }
+        analysis.processQuad(quad);
+        stats.transfers++;
+        stats.equals++;
+        if (forward)
+            return !analysis.getOut(quad).equals(original);
+        else
+            return !analysis.getIn(quad).equals(original);
+    }
+
+    private static final int DONE = Integer.MAX_VALUE;
+
+    /**
+     * A component of the ordering: a head and the elements nested in
+     * it, each either an Integer (a quad index) or a Component.
+     */
+    private static class Component {
+        final int head;
+        final LinkedList<Object> body = new LinkedList<Object>();
+
+        Component(int head) {
+            this.head = head;
+        }
+    }
+
+    /**
+     * A pending call of Bourdoncle's visit or component procedure.
+     * visit(vertex) adds what it finds to the front of partition;
+     * component(vertex) collects the body of vertex's component in
+     * partition and adds the component to the front of enclosing.
+     */
+    private static class Frame {
+        final int vertex;
+        final LinkedList<Object> partition;
+        final LinkedList<Object> enclosing;
+        int next;
+        int head;
+        boolean loop;
+
+        Frame(int vertex, LinkedList<Object> partition, LinkedList<Object> enclosing) {
+            this.vertex = vertex;
+            this.partition = partition;
+            this.enclosing = enclosing;
+        }
+
+        boolean isComponent() {
+            return enclosing != null;
+        }
+    }
+
+    /**
+     * Computes the weak topological order with Bourdoncle's algorithm,
+     * using an explicit stack of calls so that long chains of quads do
+     * not run out of Java stack.
+     */
+    private void buildOrder() {
+        int n = quads.size();
+        int[] dfn = new int[n];
+        int[] stack = new int[n];
+        int sp = 0;
+        int num = 0;
+        LinkedList<Object> top = new LinkedList<Object>();
+        List<Frame> calls = new ArrayList<Frame>();
+
+        // Quads that cannot be reached from the first one start a
+        // visit of their own, which puts them before the quads they
+        // lead to.
+        for (int root = 0; root < n; root++) {
+            if (dfn[root] != 0)
+                continue;
+            calls.add(visit(root, top, dfn, stack, sp++, ++num));
+            while (!calls.isEmpty()) {
+                Frame f = calls.get(calls.size() - 1);
+                int v = f.vertex;
+                int[] succs = quads.downstream[v];
+                if (f.next < succs.length) {
+                    int w = succs[f.next++];
+                    if (dfn[w] == 0) {
+                        calls.add(visit(w, f.partition, dfn, stack, sp++, ++num));
+                    } else if (!f.isComponent() && dfn[w] <= f.head) {
+                        f.head = dfn[w];
+                        f.loop = true;
+                    }
+                    continue;
+                }
+                calls.remove(calls.size() - 1);
+
+                if (f.isComponent()) {
+                    Component c = new Component(v);
+                    c.body.addAll(f.partition);
+                    f.enclosing.addFirst(c);
+                    continue;
+                }
+
+                // return f.head to the caller
+                if (!calls.isEmpty()) {
+                    Frame caller = calls.get(calls.size() - 1);
+                    if (!caller.isComponent() && f.head <= caller.head) {
+                        caller.head = f.head;
+                        caller.loop = true;
+                    }
+                }
+                if (f.head != dfn[v])
+                    continue;
+                dfn[v] = DONE;
+                int el = stack[--sp];
+                if (f.loop) {
+                    while (el != v) {
+                        dfn[el] = 0;
+                        el = stack[--sp];
+                    }
+                    calls.add(new Frame(v, new LinkedList<Object>(), f.partition));
+                } else {
+                    f.partition.addFirst(v);
+                }
+            }
+        }
+
+        sequence = new int[n];
+        end = new int[n];
+        isHead = new boolean[n];
+        loopHeads = new ArrayList<Quad>();
+        flatten(top, 0);
+    }
+
+    /**
+     * Starts a call of visit(v): pushes v on the stack and numbers it.
+     */
+    private static Frame visit(int v, LinkedList<Object> partition, int[] dfn, int[] stack, int sp, int num) {
+        stack[sp] = v;
+        dfn[v] = num;
+        Frame f = new Frame(v, partition, null);
+        f.head = num;
+        return f;
+    }
+
+    /**
+     * Writes the elements of a partition into sequence from position
+     * p on and returns the position after them.
+     */
+    private int flatten(List<Object> partition, int p) {
+        for (Object o : partition) {
+            if (o instanceof Integer) {
+                sequence[p] = (Integer) o;
+                end[p] = p + 1;
+                p++;
+            } else {
+                Component c = (Component) o;
+                int start = p;
+                sequence[p] = c.head;
+                isHead[p] = true;
+                loopHeads.add(quads.order[c.head]);
+                p = flatten(c.body, p + 1);
+                end[start] = p;
+            }
+        }
+        return p;
+    }
+}
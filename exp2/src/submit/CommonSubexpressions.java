@@ -0,0 +1,163 @@
+package submit;
+
+import flow.AnalysisContext;
+import flow.AvailableExpressions;
+import flow.DemandQueries;
+import flow.Flow;
+import flow.FlowSolver;
+import flow.SolverStats;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.Operator;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Global common subexpression elimination, driven by
+ * flow.AvailableExpressions: a Binary quad computing an expression
+ * that is available before it reads the value computed earlier
+ * instead of computing it again.
+ * <p>
+ * The value is kept in a register for each such expression.  When
+ * every quad computing the expression writes the same register, and
+ * every definition of that register reaching the redundant quad is one
+ * of them, that register already holds the value and the redundant
+ * quad goes, or becomes a move if it writes another register.
+ * Otherwise a new temp register is copied from the result of every
+ * quad computing the expression, and the redundant quads become moves
+ * from it.  CopyPropagation and DeadCodeElimination then remove what
+ * is left of the moves.
+ */
+class CommonSubexpressions extends AvailableExpressions {
+
+    /**
+     * Returns a pass eliminating common subexpressions in every CFG it
+     * visits, and printing the number of quads rewritten in each
+     * method on System.err.
+     *
+     * @param stats where the cost of every solver run goes, or null
+     */
+    static ControlFlowGraphVisitor pass(final SolverStats.Log stats) {
+        return new ControlFlowGraphVisitor() {
+            public void visitCFG(ControlFlowGraph cfg) {
+                CommonSubexpressions analysis = new CommonSubexpressions();
+                Flow.Solver solver = new FlowSolver();
+                solver.registerAnalysis(analysis);
+                (stats == null ? solver : stats.watch(solver)).visitCFG(cfg);
+                System.err.println(cfg.getMethod().getName() + " eliminated " + analysis.eliminated);
+            }
+        };
+    }
+
+    /* Number of redundant quads rewritten by the last postprocess */
+    private int eliminated;
+
+    @Override
+    public void preprocess(ControlFlowGraph cfg) {
+        initialize(cfg);
+    }
+
+    /**
+     * Rewrites the redundant quads instead of printing the result.
+     */
+    @Override
+    public void postprocess(ControlFlowGraph cfg) {
+        eliminated = 0;
+        int n = getNumExpressions();
+        // by expression: the quads computing it, and the redundant ones
+        List<List<Quad>> computing = new ArrayList<List<Quad>>();
+        BitSet redundantIDs = new BitSet();
+        List<List<Quad>> redundant = new ArrayList<List<Quad>>();
+        for (int e = 0; e < n; e++) {
+            computing.add(new ArrayList<Quad>());
+            redundant.add(new ArrayList<Quad>());
+        }
+        QuadIterator iter = new QuadIterator(cfg);
+        while (iter.hasNext()) {
+            Quad q = iter.next();
+            int e = getExpression(q);
+            if (e < 0)
+                continue;
+            computing.get(e).add(q);
+            if (isAvailable(getIn(q), e)) {
+                redundant.get(e).add(q);
+                redundantIDs.set(q.getID());
+            }
+        }
+
+        // choose the register holding every expression worth it
+        Register[] holder = new Register[n];
+        boolean[] shared = new boolean[n];
+        DemandQueries queries = new DemandQueries(cfg);
+        for (int e = 0; e < n; e++) {
+            if (redundant.get(e).isEmpty())
+                continue;
+            Register r = sharedDest(computing.get(e), redundant.get(e), queries);
+            shared[e] = r != null;
+            holder[e] = r != null ? r : cfg.getRegisterFactory().makeTempReg(
+                    Operator.Binary.getDest(computing.get(e).get(0)).getType());
+        }
+
+        iter = new QuadIterator(cfg);
+        while (iter.hasNext()) {
+            Quad q = iter.next();
+            int e = getExpression(q);
+            if (e < 0 || holder[e] == null)
+                continue;
+            RegisterOperand dest = Operator.Binary.getDest(q);
+            if (redundantIDs.get(q.getID())) {
+                if (dest.getRegister() == holder[e])
+                    iter.remove();
+                else
+                    iter.set(Operator.Move.create(q.getID(), Operator.Move.getMoveOp(dest.getType()),
+                            (RegisterOperand) dest.copy(), new RegisterOperand(holder[e], dest.getType())));
+                eliminated++;
+            } else if (!shared[e] && !kills(q, dest.getRegister())) {
+                // keep the value for the redundant quads
+                iter.add(Operator.Move.create(cfg.getNewQuadID(), Operator.Move.getMoveOp(dest.getType()),
+                        new RegisterOperand(holder[e], dest.getType()), new RegisterOperand(dest.getRegister(), dest.getType())));
+            }
+        }
+        if (eliminated > 0)
+            AnalysisContext.invalidate(cfg);
+    }
+
+    /**
+     * Returns the register all quads computing an expression write, if
+     * it holds the value of the expression at every redundant quad,
+     * else null.
+     */
+    private static Register sharedDest(List<Quad> computing, List<Quad> redundant, DemandQueries queries) {
+        Register r = Operator.Binary.getDest(computing.get(0)).getRegister();
+        BitSet ids = new BitSet();
+        for (Quad q : computing) {
+            if (Operator.Binary.getDest(q).getRegister() != r)
+                return null;
+            ids.set(q.getID());
+        }
+        for (Quad q : redundant) {
+            BitSet defs = queries.getReachingDefsIn(q, r.toString());
+            defs.andNot(ids);
+            if (!defs.isEmpty())
+                return null;
+        }
+        return r;
+    }
+
+    /**
+     * Returns true if q overwrites one of its own operands with r, so
+     * that its expression is not available after it.
+     */
+    private static boolean kills(Quad q, Register r) {
+        for (RegisterOperand use : q.getUsedRegisters())
+            if (use.getRegister() == r)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,297 @@
+package submit;
+
+import flow.AnalysisContext;
+import flow.ConstantProp;
+import flow.Flow;
+import flow.IncrementalSolver;
+import flow.SolverStats;
+import joeq.Compiler.Quad.BasicBlock;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+import joeq.Compiler.Quad.Operand;
+import joeq.Compiler.Quad.Operand.IConstOperand;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.Operand.TargetOperand;
+import joeq.Compiler.Quad.Operator;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Constant folding and propagation, driven by flow.ConstantProp.
+ * <p>
+ * The analysis is extended to every int Binary (DIV_I and REM_I only
+ * by a non-zero constant) and to the int Unary quads, so that it knows
+ * the values the rewrite can compute.  Then:
+ * <ul>
+ * <li>int registers known to be constant are replaced by IConstOperands
+ * in MOVE_I, int Binary, int Unary and IFCMP_I quads;</li>
+ * <li>Binary and Unary quads whose operands are all constant become
+ * MOVE_I of their result;</li>
+ * <li>ZERO_CHECK_I of a non-zero constant is removed;</li>
+ * <li>IFCMP_I of two constants becomes a GOTO if taken and is removed
+ * if not, and the edge that can no longer be followed goes.</li>
+ * </ul>
+ * The moves left behind are removed by DeadCodeElimination when they
+ * are no longer needed.  Cutting an edge can make more registers
+ * constant, so the results are brought up to date (IncrementalSolver)
+ * and the CFG rewritten again until nothing changes.
+ */
+class ConstantFolding extends ConstantProp {
+
+    /**
+     * Returns a pass folding constants in every CFG it visits, and
+     * printing the number of quads folded in each method on System.err,
+     * so that the null checks Optimize prints stay alone on System.out.
+     *
+     * @param stats where the cost of every solver run goes, or null
+     */
+    static ControlFlowGraphVisitor pass(final SolverStats.Log stats) {
+        return new ControlFlowGraphVisitor() {
+            public void visitCFG(ControlFlowGraph cfg) {
+                ConstantFolding analysis = new ConstantFolding();
+                IncrementalSolver solver = new IncrementalSolver();
+                solver.registerAnalysis(analysis);
+                solver.visitCFG(cfg);
+                if (stats != null)
+                    stats.add(solver.getStats());
+                int folded = analysis.folded;
+                while (analysis.changed) {
+                    // only the values downstream of the rewritten quads
+                    // and of the cut edges are solved again
+                    solver.update(cfg, analysis.rewritten);
+                    if (stats != null)
+                        stats.add(solver.getStats());
+                    folded += analysis.folded;
+                }
+                System.err.println(cfg.getMethod().getName() + " folded " + folded);
+            }
+        };
+    }
+
+    /* Number of quads folded by the last postprocess */
+    private int folded;
+    /* Whether the last postprocess changed the CFG at all */
+    private boolean changed;
+    /* The quads the last postprocess inserted or changed the operands of */
+    private List<Quad> rewritten;
+
+    @Override
+    public void preprocess(ControlFlowGraph cfg) {
+        initialize(cfg);
+    }
+
+    /**
+     * Rewrites the CFG instead of printing the result.
+     */
+    @Override
+    public void postprocess(ControlFlowGraph cfg) {
+        folded = 0;
+        changed = false;
+        rewritten = new ArrayList<Quad>();
+        boolean cut = false;
+        QuadIterator iter = new QuadIterator(cfg);
+        while (iter.hasNext()) {
+            Quad q = iter.next();
+            ConstantPropTable in = (ConstantPropTable) getIn(q);
+            Operator op = q.getOperator();
+            if (op == Operator.Move.MOVE_I.INSTANCE) {
+                Operator.Move.setSrc(q, propagate(q, Operator.Move.getSrc(q), in));
+            } else if (op instanceof Operator.Binary && isFoldable(op)) {
+                Operator.Binary.setSrc1(q, propagate(q, Operator.Binary.getSrc1(q), in));
+                Operator.Binary.setSrc2(q, propagate(q, Operator.Binary.getSrc2(q), in));
+                Integer value = evaluate(op, Operator.Binary.getSrc1(q), Operator.Binary.getSrc2(q));
+                if (value != null) {
+                    iter.set(moveOf(q, Operator.Binary.getDest(q), value));
+                    folded++;
+                }
+            } else if (op instanceof Operator.Unary && isFoldable(op)) {
+                Operator.Unary.setSrc(q, propagate(q, Operator.Unary.getSrc(q), in));
+                Integer value = evaluate(op, Operator.Unary.getSrc(q), null);
+                if (value != null) {
+                    iter.set(moveOf(q, Operator.Unary.getDest(q), value));
+                    folded++;
+                }
+            } else if (op == Operator.ZeroCheck.ZERO_CHECK_I.INSTANCE) {
+                Operand src = Operator.ZeroCheck.getSrc(q);
+                if (src instanceof RegisterOperand && in.isConst(((RegisterOperand) src).getRegister())
+                        && in.getConst(((RegisterOperand) src).getRegister()) != 0) {
+                    iter.remove();
+                    changed = true;
+                    folded++;
+                }
+            } else if (op == Operator.IntIfCmp.IFCMP_I.INSTANCE) {
+                Operator.IntIfCmp.setSrc1(q, propagate(q, Operator.IntIfCmp.getSrc1(q), in));
+                Operator.IntIfCmp.setSrc2(q, propagate(q, Operator.IntIfCmp.getSrc2(q), in));
+                Operand src1 = Operator.IntIfCmp.getSrc1(q), src2 = Operator.IntIfCmp.getSrc2(q);
+                if (src1 instanceof IConstOperand && src2 instanceof IConstOperand) {
+                    BasicBlock bb = iter.getCurrentBasicBlock();
+                    BasicBlock fallBB = bb.getFallthroughSuccessor();
+                    BasicBlock branchBB = Operator.IntIfCmp.getTarget(q).getTarget();
+                    boolean taken = compare(Operator.IntIfCmp.getCond(q).getCondition(),
+                            ((IConstOperand) src1).getValue(), ((IConstOperand) src2).getValue());
+                    if (taken) {
+                        Quad jump = Operator.Goto.create(q.getID(), Operator.Goto.GOTO.INSTANCE,
+                                new TargetOperand(branchBB));
+                        iter.set(jump);
+                        rewritten.add(jump);
+                    } else {
+                        iter.remove();
+                    }
+                    changed = true;
+                    // drop the edge that is never followed
+                    if (fallBB != branchBB) {
+                        BasicBlock dead = taken ? fallBB : branchBB;
+                        bb.removeSuccessor(dead);
+                        dead.removePredecessor(bb);
+                        cut = true;
+                    }
+                    folded++;
+                }
+            }
+        }
+        if (cut)
+            cfg.removeUnreachableBasicBlocks();
+        if (changed)
+            AnalysisContext.invalidate(cfg);
+    }
+
+    /**
+     * Returns the constant in place of a register of q known to hold
+     * one, else the operand itself.
+     */
+    private Operand propagate(Quad q, Operand op, ConstantPropTable in) {
+        if (op instanceof RegisterOperand && in.isConst(((RegisterOperand) op).getRegister())) {
+            changed = true;
+            rewritten.add(q);
+            return new IConstOperand(in.getConst(((RegisterOperand) op).getRegister()));
+        }
+        return op;
+    }
+
+    private Quad moveOf(Quad q, RegisterOperand dest, int value) {
+        changed = true;
+        Quad move = Operator.Move.create(q.getID(), Operator.Move.MOVE_I.INSTANCE,
+                (RegisterOperand) dest.copy(), new IConstOperand(value));
+        rewritten.add(move);
+        return move;
+    }
+
+    /**
+     * Computes the int Binary and Unary quads ConstantProp leaves NAC,
+     * in the same way as its ADD_I: NAC if an operand is, else undef if
+     * an operand is, else the result.
+     */
+    @Override
+    public void transfer(Quad q, Flow.DataflowObject value) {
+        Operator op = q.getOperator();
+        if (!isFoldable(op)) {
+            super.transfer(q, value);
+            return;
+        }
+        ConstantPropTable val = (ConstantPropTable) value;
+        Operand src1, src2 = null;
+        RegisterOperand dest;
+        if (op instanceof Operator.Binary) {
+            src1 = Operator.Binary.getSrc1(q);
+            src2 = Operator.Binary.getSrc2(q);
+            dest = Operator.Binary.getDest(q);
+        } else {
+            src1 = Operator.Unary.getSrc(q);
+            dest = Operator.Unary.getDest(q);
+        }
+        if (isNAC(src1, val) || (src2 != null && isNAC(src2, val))) {
+            val.setNAC(dest.getRegister());
+        } else if (isUndef(src1, val) || (src2 != null && isUndef(src2, val))) {
+            val.setUndef(dest.getRegister());
+        } else {
+            Integer result = evaluate(op, constantOf(src1, val), src2 == null ? null : constantOf(src2, val));
+            if (result == null)
+                val.setNAC(dest.getRegister());
+            else
+                val.setConst(dest.getRegister(), result);
+        }
+    }
+
+    private static boolean isNAC(Operand op, ConstantPropTable val) {
+        if (op instanceof RegisterOperand)
+            return val.isNAC(((RegisterOperand) op).getRegister());
+        return !(op instanceof IConstOperand);
+    }
+
+    private static boolean isUndef(Operand op, ConstantPropTable val) {
+        return op instanceof RegisterOperand && val.isUndef(((RegisterOperand) op).getRegister());
+    }
+
+    /* op is constant in val */
+    private static Operand constantOf(Operand op, ConstantPropTable val) {
+        if (op instanceof RegisterOperand)
+            return new IConstOperand(val.getConst(((RegisterOperand) op).getRegister()));
+        return op;
+    }
+
+    private static boolean isFoldable(Operator op) {
+        return op == Operator.Binary.ADD_I.INSTANCE || op == Operator.Binary.SUB_I.INSTANCE
+                || op == Operator.Binary.MUL_I.INSTANCE || op == Operator.Binary.DIV_I.INSTANCE
+                || op == Operator.Binary.REM_I.INSTANCE || op == Operator.Binary.AND_I.INSTANCE
+                || op == Operator.Binary.OR_I.INSTANCE || op == Operator.Binary.XOR_I.INSTANCE
+                || op == Operator.Binary.SHL_I.INSTANCE || op == Operator.Binary.SHR_I.INSTANCE
+                || op == Operator.Binary.USHR_I.INSTANCE || op == Operator.Unary.NEG_I.INSTANCE
+                || op == Operator.Unary.INT_2BYTE.INSTANCE || op == Operator.Unary.INT_2CHAR.INSTANCE
+                || op == Operator.Unary.INT_2SHORT.INSTANCE;
+    }
+
+    /**
+     * Returns the result of a foldable operator, or null if an operand
+     * is not an IConstOperand or the operator would throw.  src2 is
+     * null for Unary operators.
+     */
+    private static Integer evaluate(Operator op, Operand src1, Operand src2) {
+        if (!(src1 instanceof IConstOperand) || (src2 != null && !(src2 instanceof IConstOperand)))
+            return null;
+        int a = ((IConstOperand) src1).getValue();
+        int b = src2 == null ? 0 : ((IConstOperand) src2).getValue();
+        if (op == Operator.Binary.ADD_I.INSTANCE) return a + b;
+        if (op == Operator.Binary.SUB_I.INSTANCE) return a - b;
+        if (op == Operator.Binary.MUL_I.INSTANCE) return a * b;
+        if (op == Operator.Binary.DIV_I.INSTANCE) return b == 0 ? null : (Integer) (a / b);
+        if (op == Operator.Binary.REM_I.INSTANCE) return b == 0 ? null : (Integer) (a % b);
+        if (op == Operator.Binary.AND_I.INSTANCE) return a & b;
+        if (op == Operator.Binary.OR_I.INSTANCE) return a | b;
+        if (op == Operator.Binary.XOR_I.INSTANCE) return a ^ b;
+        if (op == Operator.Binary.SHL_I.INSTANCE) return a << b;
+        if (op == Operator.Binary.SHR_I.INSTANCE) return a >> b;
+        if (op == Operator.Binary.USHR_I.INSTANCE) return a >>> b;
+        if (op == Operator.Unary.NEG_I.INSTANCE) return -a;
+        if (op == Operator.Unary.INT_2BYTE.INSTANCE) return (int) (byte) a;
+        if (op == Operator.Unary.INT_2CHAR.INSTANCE) return (int) (char) a;
+        if (op == Operator.Unary.INT_2SHORT.INSTANCE) return (int) (short) a;
+        return null;
+    }
+
+    /**
+     * Evaluates an IFCMP_I condition (BytecodeVisitor.CMP_*).
+     */
+    private static boolean compare(byte cond, int a, int b) {
+        switch (cond) {
+            case 0: // CMP_EQ
+                return a == b;
+            case 1: // CMP_NE
+                return a != b;
+            case 2: // CMP_LT
+                return a < b;
+            case 3: // CMP_GE
+                return a >= b;
+            case 4: // CMP_LE
+                return a <= b;
+            case 5: // CMP_GT
+                return a > b;
+            case 6: // CMP_AE, unsigned
+                return (a ^ Integer.MIN_VALUE) >= (b ^ Integer.MIN_VALUE);
+            default: // CMP_UNCOND
+                return true;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package submit;
+
+import flow.AnalysisContext;
+import flow.AvailableCopies;
+import flow.Flow;
+import flow.FlowSolver;
+import flow.SolverStats;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Copy propagation, driven by flow.AvailableCopies: a use of a where
+ * the copy "a = b" is available reads b instead, following chains of
+ * copies back to the first source.  The copies themselves stay; those
+ * no longer used are removed by DeadCodeElimination.
+ * <p>
+ * Works for moves of every type, so after it the null checks of
+ * references copied from one another name the same register, and
+ * FindRedundantNullChecks can tell that the later ones are redundant.
+ */
+class CopyPropagation extends AvailableCopies {
+
+    /**
+     * Returns a pass propagating copies in every CFG it visits.
+     *
+     * @param stats where the cost of every solver run goes, or null
+     */
+    static ControlFlowGraphVisitor pass(final SolverStats.Log stats) {
+        return new ControlFlowGraphVisitor() {
+            public void visitCFG(ControlFlowGraph cfg) {
+                Flow.Solver solver = new FlowSolver();
+                solver.registerAnalysis(new CopyPropagation());
+                (stats == null ? solver : stats.watch(solver)).visitCFG(cfg);
+            }
+        };
+    }
+
+    @Override
+    public void preprocess(ControlFlowGraph cfg) {
+        initialize(cfg);
+    }
+
+    /**
+     * Rewrites the uses instead of printing the result.
+     */
+    @Override
+    public void postprocess(ControlFlowGraph cfg) {
+        boolean changed = false;
+        QuadIterator iter = new QuadIterator(cfg);
+        while (iter.hasNext()) {
+            Quad q = iter.next();
+            Flow.DataflowObject in = getIn(q);
+            for (RegisterOperand use : q.getUsedRegisters()) {
+                // follow a chain of copies back to its first source.
+                // Quads no path reaches see every copy available, so
+                // stop at a register seen before.
+                Set<Register> seen = new HashSet<Register>();
+                Register src = getCopySource(in, use.getRegister());
+                while (src != null && seen.add(src)) {
+                    use.setRegister(src);
+                    changed = true;
+                    src = getCopySource(in, src);
+                }
+            }
+        }
+        if (changed)
+            AnalysisContext.invalidate(cfg);
+    }
+}
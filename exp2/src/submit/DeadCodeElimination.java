@@ -0,0 +1,79 @@
+package submit;
+
+import flow.AnalysisContext;
+import flow.IncrementalSolver;
+import flow.SolverStats;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+import joeq.Compiler.Quad.Operator;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+
+import java.util.Collections;
+
+/**
+ * Dead code elimination: removes every Move and Binary quad whose
+ * destination is faint after it, i.e. whose value never reaches
+ * anything but other faint assignments.
+ * <p>
+ * joeq puts a ZERO_CHECK before every integer division, so a Move or
+ * Binary never throws and can go whenever its result is not needed.
+ * After every round of removals, the results are brought up to date
+ * (IncrementalSolver) and the next round runs, until a round removes
+ * nothing.
+ */
+class DeadCodeElimination extends Faintness {
+
+    /**
+     * Returns a pass removing dead quads from every CFG it visits.
+     *
+     * @param stats where the cost of every solver run goes, or null
+     */
+    static ControlFlowGraphVisitor pass(final SolverStats.Log stats) {
+        return new ControlFlowGraphVisitor() {
+            public void visitCFG(ControlFlowGraph cfg) {
+                DeadCodeElimination analysis = new DeadCodeElimination();
+                IncrementalSolver solver = new IncrementalSolver();
+                solver.registerAnalysis(analysis);
+                solver.visitCFG(cfg);
+                if (stats != null)
+                    stats.add(solver.getStats());
+                while (analysis.removed > 0) {
+                    // a removed quad changed the edges of its neighbours,
+                    // which is all update needs to find what to solve again
+                    solver.update(cfg, Collections.<Quad>emptyList());
+                    if (stats != null)
+                        stats.add(solver.getStats());
+                }
+            }
+        };
+    }
+
+    /* Number of quads removed by the last postprocess */
+    private int removed;
+
+    /**
+     * Removes the dead quads instead of printing the result.
+     */
+    @Override
+    public void postprocess(ControlFlowGraph cfg) {
+        removed = 0;
+        QuadIterator iter = new QuadIterator(cfg);
+        while (iter.hasNext()) {
+            Quad q = iter.next();
+            if (isDead(q)) {
+                iter.remove();
+                removed++;
+            }
+        }
+        if (removed > 0)
+            AnalysisContext.invalidate(cfg);
+    }
+
+    private boolean isDead(Quad q) {
+        if (!(q.getOperator() instanceof Operator.Move || q.getOperator() instanceof Operator.Binary))
+            return false;
+        VarSet val = (VarSet) getOut(q);
+        return val.isFaint(ctx.getDefs(q)[0]);
+    }
+}
@@ -1,20 +1,21 @@
 package submit;
 
+import flow.AnalysisContext;
 import flow.Flow;
+import flow.RegisterIndex;
 import joeq.Compiler.Quad.ControlFlowGraph;
-import joeq.Compiler.Quad.Operand.RegisterOperand;
 import joeq.Compiler.Quad.Operator;
 import joeq.Compiler.Quad.Quad;
-import joeq.Compiler.Quad.QuadIterator;
 
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Skeleton class for implementing a faint variable analysis
  * using the Flow.Analysis interface.
  */
-public class Faintness implements Flow.Analysis {
+public class Faintness implements Flow.TransferAnalysis, Flow.ViewAnalysis, Flow.IncrementalAnalysis {
 
     /**
      * Dataflow objects for the interior and entry/exit points
@@ -26,6 +27,8 @@ public class Faintness implements Flow.Analysis {
      */
     private VarSet[] in, out;
     VarSet entry, exit;
+    AnalysisContext ctx;
+    private RegisterIndex registers;
 
     /**
      * This method initializes the datflow framework.
@@ -36,56 +39,25 @@ public class Faintness implements Flow.Analysis {
         // this line must come first.
 //        System.out.println("Method: " + cfg.getMethod().getName().toString());
 
-        // get the amount of space we need to allocate for the in/out arrays.
-        QuadIterator qit = new QuadIterator(cfg);
-        int max = 0;
-        while (qit.hasNext()) {
-            int id = qit.next().getID();
-            if (id > max)
-                max = id;
-        }
-        max += 1;
-
-        // Begin computing the universal set. This needs to be done before
-        // any VarSet objects are created.
-        Set<String> s = new TreeSet<String>();
-        VarSet.universalSet = s;
-
-        /* Arguments are always there. */
-        int numargs = cfg.getMethod().getParamTypes().length;
-        for (int i = 0; i < numargs; i++) {
-            s.add("R" + i);
-        }
-
-        qit = new QuadIterator(cfg);
-        while (qit.hasNext()) {
-            Quad q = qit.next();
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                s.add(def.getRegister().toString());
-            }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                s.add(use.getRegister().toString());
-            }
-        }
-        // End computing the universal set
+        // The universal set is the arguments plus every register
+        // defined or used; the context has it numbered already.
+        ctx = AnalysisContext.of(cfg);
+        registers = ctx.getRegisters();
 
         // allocate the in and out arrays.
-        in = new VarSet[max];
-        out = new VarSet[max];
+        in = new VarSet[ctx.getMaxID()];
+        out = new VarSet[ctx.getMaxID()];
 
         // initialize the contents of in and out.
-        qit = new QuadIterator(cfg);
-        while (qit.hasNext()) {
-            int id = qit.next().getID();
-            in[id] = new VarSet();
-            out[id] = new VarSet();
+        for (Quad q : ctx.getQuads()) {
+            in[q.getID()] = new VarSet(registers);
+            out[q.getID()] = new VarSet(registers);
         }
 
         // initialize the entry and exit points.
-        entry = new VarSet();
-        exit = new VarSet();
+        entry = new VarSet(registers);
+        exit = new VarSet(registers);
 
-        // Most of my initialization is above (computing the universal set)
 //        System.out.println("Initialization completed.");
     }
 
@@ -159,51 +131,98 @@ public class Faintness implements Flow.Analysis {
         out[q.getID()].copy(value);
     }
 
+    public Flow.DataflowObject viewEntry() {
+        return entry;
+    }
+
+    public Flow.DataflowObject viewExit() {
+        return exit;
+    }
+
+    public Flow.DataflowObject viewIn(Quad q) {
+        return in[q.getID()];
+    }
+
+    public Flow.DataflowObject viewOut(Quad q) {
+        return out[q.getID()];
+    }
+
+    /**
+     * Follows a change of the CFG: values are renumbered for the new
+     * registers, new quads start at Top and quads that are gone are
+     * reset.  The transfer function of a quad only depends on the quad.
+     */
+    public Collection<Quad> update(ControlFlowGraph cfg) {
+        ctx = AnalysisContext.of(cfg);
+        registers = ctx.getRegisters();
+        VarSet[] oldIn = in, oldOut = out;
+        in = new VarSet[ctx.getMaxID()];
+        out = new VarSet[ctx.getMaxID()];
+        for (Quad q : ctx.getQuads()) {
+            int id = q.getID();
+            boolean kept = id < oldIn.length && oldIn[id] != null;
+            in[id] = kept ? oldIn[id].renumber(registers) : new VarSet(registers);
+            out[id] = kept ? oldOut[id].renumber(registers) : new VarSet(registers);
+        }
+        entry = entry.renumber(registers);
+        exit = exit.renumber(registers);
+        return Collections.emptyList();
+    }
+
     public Flow.DataflowObject newTempVar() {
-        return new VarSet();
+        return new VarSet(registers);
     }
 
     public void processQuad(Quad q) {
-        VarSet val = (VarSet) getOut(q);
+        in[q.getID()].copy(out[q.getID()]);
+        transfer(q, in[q.getID()]);
+    }
+
+    public void transfer(Quad q, Flow.DataflowObject value) {
+        VarSet val = (VarSet) value;
         // Move non-faintness over to used registers for move and binary operators
         if (q.getOperator() instanceof Operator.Move || q.getOperator() instanceof Operator.Binary) {
             // Get the defined register (we know there's exactly one)
-            RegisterOperand def = q.getDefinedRegisters().iterator().next();
-            boolean defWasFaint = val.isFaint(def.getRegister().toString());
+            int def = ctx.getDefs(q)[0];
+            boolean defWasFaint = val.isFaint(def);
             // Make the defined register faint
-            val.setFaint(def.getRegister().toString());
+            val.setFaint(def);
 
             // If the defined register was not faint, make the used registers not faint
             if (!defWasFaint) {
-                for (RegisterOperand use : q.getUsedRegisters()) {
-                    val.setNotFaint(use.getRegister().toString());
+                for (int use : ctx.getUses(q)) {
+                    val.setNotFaint(use);
                 }
             }
         } else {
             // For all other quads behave similarly to liveness analysis
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                val.setFaint(def.getRegister().toString());
+            for (int def : ctx.getDefs(q)) {
+                val.setFaint(def);
             }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                val.setNotFaint(use.getRegister().toString());
+            for (int use : ctx.getUses(q)) {
+                val.setNotFaint(use);
             }
         }
-        setIn(q, val);
     }
 
     /**
      * Class for the dataflow objects in the Faintness analysis.
      * Based very closely on the class flow.Liveness.VarSet
      */
-    public static class VarSet implements Flow.DataflowObject {
-        static Set<String> universalSet;
-        Set<String> set;
+    public static class VarSet implements Flow.VersionedObject {
+        private final RegisterIndex registers;
+        private final BitSet set;
+        private int version;
+        /* The size of set after the last meetWith, -1 if set changed since */
+        private int size = -1;
 
         /**
          * The default value has all registers faint
          */
-        VarSet() {
-            set = new TreeSet<String>(universalSet);
+        VarSet(RegisterIndex registers) {
+            this.registers = registers;
+            set = new BitSet(registers.size());
+            set.set(0, registers.size());
         }
 
         /**
@@ -213,11 +232,13 @@ public class Faintness implements Flow.Analysis {
          * Most are similar to the methods in flow.Liveness.VarSet
          */
         public void setToTop() {
-            set = new TreeSet<String>(universalSet);
+            set.set(0, registers.size());
+            size = -1;
         }
 
         public void setToBottom() {
-            set = new TreeSet<String>();
+            set.clear();
+            size = -1;
         }
 
         /**
@@ -225,12 +246,23 @@ public class Faintness implements Flow.Analysis {
          */
         public void meetWith(Flow.DataflowObject o) {
             VarSet a = (VarSet) o;
-            set.retainAll(a.set); // strange name for intersect
+            // an intersection only removes bits, so a change shows in the count
+            int before = size >= 0 ? size : set.cardinality();
+            set.and(a.set);
+            size = set.cardinality();
+            if (size != before)
+                version++;
+        }
+
+        public int getVersion() {
+            return version;
         }
 
         public void copy(Flow.DataflowObject o) {
             VarSet a = (VarSet) o;
-            set = new TreeSet<String>(a.set);
+            set.clear();
+            set.or(a.set);
+            size = -1;
         }
 
         @Override
@@ -258,19 +290,52 @@ public class Faintness implements Flow.Analysis {
          */
         @Override
         public String toString() {
-            return set.toString();
+            return registers.toString(set);
         }
 
         void setFaint(String v) {
-            set.add(v);
+            set.set(registers.indexOf(v));
+            size = -1;
         }
 
         void setNotFaint(String v) {
-            set.remove(v);
+            set.clear(registers.indexOf(v));
+            size = -1;
         }
 
         boolean isFaint(String v) {
-            return set.contains(v);
+            return set.get(registers.indexOf(v));
+        }
+
+        void setFaint(int v) {
+            set.set(v);
+            size = -1;
+        }
+
+        void setNotFaint(int v) {
+            set.clear(v);
+            size = -1;
+        }
+
+        boolean isFaint(int v) {
+            return set.get(v);
+        }
+
+        /**
+         * Returns this set numbered by another index.  Registers the
+         * other index does not have are dropped; registers only it has
+         * are faint.
+         */
+        VarSet renumber(RegisterIndex other) {
+            if (registers.sameAs(other))
+                return this;
+            VarSet result = new VarSet(other);
+            for (int i = set.nextClearBit(0); i < registers.size(); i = set.nextClearBit(i + 1)) {
+                int j = other.indexOf(registers.nameOf(i));
+                if (j >= 0)
+                    result.set.clear(j);
+            }
+            return result;
         }
     }
 }
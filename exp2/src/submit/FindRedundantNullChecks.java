@@ -4,6 +4,8 @@ import flow.*;
 import joeq.Class.jq_Class;
 import joeq.Compiler.Quad.*;
 import joeq.Main.Helper;
+
+import java.io.File;
 import java.util.*;
 
 public class FindRedundantNullChecks {
@@ -14,18 +16,34 @@ public class FindRedundantNullChecks {
      * The format should be "method_name id0 id1 id2", integers for each id separated by spaces.
      *
      * @param args an array of class names. If "-e" presented, do extra analysing.
+     *             With "-cache dir", methods solved by an earlier run are printed from dir.
      */
     public static void main(String[] _args) {
         List<String> args = new ArrayList<String>(Arrays.asList(_args));
         boolean extra = args.contains("-e");
         if (extra)
             args.remove("-e");
+        ResultCache cache = null;
+        int c = args.indexOf("-cache");
+        if (c >= 0 && c + 1 < args.size()) {
+            File dir = new File(args.remove(c + 1));
+            args.remove(c);
+            cache = new ResultCache(dir, FlowSolver.class, NonNull.class, extra ? "extra" : "");
+        }
 
-        jq_Class clazz = (jq_Class)Helper.load(_args[0]);
+        jq_Class clazz = (jq_Class)Helper.load(args.get(0));
         Flow.Solver solver = new FlowSolver();
         NonNull analyzer = new NonNull(extra, false);
         solver.registerAnalysis(analyzer);
-        Helper.runPass(clazz, solver);
+        Helper.runPass(clazz, cache == null ? solver : cache.wrap(solver));
+    }
+
+    /**
+     * Returns a new instance of the analysis behind main, without the
+     * extra analysing, for running it with another solver.
+     */
+    public static Flow.Analysis newAnalysis() {
+        return new NonNull(false, false);
     }
 
     // `submit.Faintness` is just a copy of `flow.Faintness` with :
@@ -41,10 +59,17 @@ public class FindRedundantNullChecks {
         Set<Integer> createdNullChecks;
         final boolean extra;
         final boolean doOpt;
+        /* Whether postprocess prints the redundant null checks */
+        final boolean print;
 
 		NonNull(boolean extra, boolean doOpt) {
+			this(extra, doOpt, true);
+		}
+
+		NonNull(boolean extra, boolean doOpt, boolean print) {
 			this.extra = extra;
 			this.doOpt = doOpt;
+			this.print = print;
 		}
 
 		@Override
@@ -54,13 +79,14 @@ public class FindRedundantNullChecks {
 		    if(extra) {
                 // Modify CFG first
                 createNullCheckAfterIfCmp(cfg);
+                AnalysisContext.invalidate(cfg);
             }
 
             super.preprocess(cfg);
 
             int numargs = cfg.getMethod().getParamTypes().length;
             for (int i = 0; i < numargs; i++) {
-                super.entry.set.remove("R" + i);
+                super.entry.setNotFaint("R" + i);
             }
         }
 
@@ -115,10 +141,12 @@ public class FindRedundantNullChecks {
 
         @Override
         public void postprocess(ControlFlowGraph cfg) {
-            System.out.print(cfg.getMethod().getName());
-            for (Integer id: redundantNullChecks)
-                System.out.print(" " + id.toString());
-            System.out.println();
+            if(print) {
+                System.out.print(cfg.getMethod().getName());
+                for (Integer id: redundantNullChecks)
+                    System.out.print(" " + id.toString());
+                System.out.println();
+            }
             if(doOpt) {
                 doOptimize(cfg);
             }
@@ -133,6 +161,7 @@ public class FindRedundantNullChecks {
                     iter.remove();
                 }
             }
+            AnalysisContext.invalidate(cfg);
         }
 
         @Override
@@ -142,23 +171,29 @@ public class FindRedundantNullChecks {
 
         @Override
         public void processQuad(Quad q) {
-            VarSet val = (VarSet) getIn(q);
+            Flow.DataflowObject val = viewOut(q);
+            val.copy(viewIn(q));
+            transfer(q, val);
+        }
+
+        @Override
+        public void transfer(Quad q, Flow.DataflowObject value) {
+            VarSet val = (VarSet) value;
             // kill all defs
-            for(Operand.RegisterOperand r: q.getDefinedRegisters()) {
-                val.set.remove(r.getRegister().toString());
+            for(int r: ctx.getDefs(q)) {
+                val.setNotFaint(r);
             }
             if(q.getOperator() instanceof Operator.NullCheck) {
-                String reg = q.getUsedRegisters().get(0).getRegister().toString();
+                int reg = ctx.getUses(q)[0];
                 // check redundant
-                if(val.set.contains(reg)) {
+                if(val.isFaint(reg)) {
                     redundantNullChecks.add(q.getID());
                 } else {
                     redundantNullChecks.remove(q.getID());
                 }
                 // gen non nulls
-                val.set.add(reg);
+                val.setFaint(reg);
             }
-            setOut(q, val);
         }
     }
 }
@@ -0,0 +1,401 @@
+package submit;
+
+import flow.AnalysisContext;
+import flow.DemandQueries;
+import joeq.Compiler.Quad.BasicBlock;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+import joeq.Compiler.Quad.Dominators;
+import joeq.Compiler.Quad.ExceptionHandler;
+import joeq.Compiler.Quad.ExceptionHandlerList;
+import joeq.Compiler.Quad.Operand;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.Operand.TargetOperand;
+import joeq.Compiler.Quad.Operator;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loop-invariant code motion: quads computing the same value on every
+ * iteration of a loop are moved to a new block run once before it.
+ * <p>
+ * The loops are the natural loops of the back edges, i.e. the edges
+ * b -> h where h dominates b (joeq's Dominators); loops sharing a
+ * header are one loop.  Inner loops go first, so that what they hoist
+ * can be hoisted again out of the loop around them.  The new block,
+ * the preheader, takes the place of h for every edge entering the loop.
+ * <p>
+ * A quad is invariant when every definition reaching one of its
+ * operands (flow.DemandQueries) is outside the loop or was hoisted.
+ * It is moved when it is the only definition of its destination in
+ * the loop and the destination is not live at the entry of h: then
+ * no quad sees the value it overwrote, and every quad reading the
+ * destination sees the value it computes, in the loop and after it.
+ * Otherwise, as for the stack temps javac reuses all over a loop, the
+ * preheader computes the value into a new temp and the quad becomes a
+ * move from it, for CopyPropagation and DeadCodeElimination to remove.
+ * <p>
+ * Move, Unary and Binary quads never throw (int and long divisions
+ * only with a non-zero constant divisor; the others are guarded by a
+ * ZERO_CHECK), so they are moved wherever they are in the loop.  The
+ * NULL_CHECK and ARRAYLENGTH quads starting the header are moved too,
+ * as they run first whenever the loop is entered; the preheader has
+ * the exception handlers of h for them.  Field loads stay: without
+ * knowing what the stores and calls of the loop write, they cannot be
+ * told invariant.
+ */
+class LoopInvariantCodeMotion {
+
+    /**
+     * Returns a pass hoisting invariant quads out of the loops of every
+     * CFG it visits.
+     */
+    static ControlFlowGraphVisitor pass() {
+        return new ControlFlowGraphVisitor() {
+            public void visitCFG(ControlFlowGraph cfg) {
+                Set<BasicBlock> done = new HashSet<BasicBlock>();
+                for (;;) {
+                    Map<BasicBlock, Set<BasicBlock>> loops = findLoops(cfg);
+                    BasicBlock header = null;
+                    for (BasicBlock h : loops.keySet())
+                        if (!done.contains(h) && (header == null
+                                || loops.get(h).size() < loops.get(header).size()))
+                            header = h;
+                    if (header == null)
+                        break;
+                    done.add(header);
+                    new LoopInvariantCodeMotion(cfg, header, loops.get(header)).hoist();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the blocks of the natural loops of a CFG, by header.
+     */
+    private static Map<BasicBlock, Set<BasicBlock>> findLoops(ControlFlowGraph cfg) {
+        Dominators dom = new Dominators(true);
+        dom.visitMethod(cfg.getMethod());
+        List<BasicBlock> order = cfg.reversePostOrder(cfg.entry());
+        Set<BasicBlock> reachable = new HashSet<BasicBlock>(order);
+
+        Map<BasicBlock, Set<BasicBlock>> loops = new LinkedHashMap<BasicBlock, Set<BasicBlock>>();
+        for (BasicBlock b : order) {
+            for (BasicBlock h : b.getSuccessors()) {
+                if (!reachable.contains(h) || !dom.dominators[b.getID()].get(h.getID()))
+                    continue;
+                Set<BasicBlock> body = loops.get(h);
+                if (body == null) {
+                    body = new HashSet<BasicBlock>();
+                    body.add(h);
+                    loops.put(h, body);
+                }
+                // the blocks reaching b without passing through h
+                List<BasicBlock> worklist = new ArrayList<BasicBlock>();
+                if (body.add(b))
+                    worklist.add(b);
+                while (!worklist.isEmpty()) {
+                    BasicBlock x = worklist.remove(worklist.size() - 1);
+                    for (BasicBlock p : predecessors(cfg, x))
+                        if (reachable.contains(p) && body.add(p))
+                            worklist.add(p);
+                }
+            }
+        }
+        return loops;
+    }
+
+    /**
+     * Returns the blocks flowing into b, with the blocks an exception
+     * handler starting at b handles.
+     */
+    private static List<BasicBlock> predecessors(ControlFlowGraph cfg, BasicBlock b) {
+        List<BasicBlock> result = new ArrayList<BasicBlock>(b.getPredecessors());
+        if (b.isExceptionHandlerEntry()) {
+            Iterator<ExceptionHandler> it = cfg.getExceptionHandlersMatchingEntry(b);
+            while (it.hasNext())
+                result.addAll(it.next().getHandledBasicBlocks());
+        }
+        return result;
+    }
+
+    private final ControlFlowGraph cfg;
+    private final BasicBlock header;
+    private final Set<BasicBlock> body;
+    /* The blocks of the loop in reverse postorder */
+    private final List<BasicBlock> order = new ArrayList<BasicBlock>();
+    /* IDs of the quads of the loop */
+    private final BitSet inLoop = new BitSet();
+    private final Map<Quad, BasicBlock> blockOf = new HashMap<Quad, BasicBlock>();
+    /* By register name: the number of quads of the loop defining it */
+    private final Map<String, Integer> numDefs = new HashMap<String, Integer>();
+    private DemandQueries queries;
+
+    /* The quads to hoist, in the order they run in the preheader */
+    private final List<Quad> hoisted = new ArrayList<Quad>();
+    /* IDs of the hoisted quads moving with their destination */
+    private final BitSet movedIDs = new BitSet();
+    /* By ID of the other hoisted quads: the new temp holding the value */
+    private final Map<Integer, Register> holders = new HashMap<Integer, Register>();
+
+    private LoopInvariantCodeMotion(ControlFlowGraph cfg, BasicBlock header, Set<BasicBlock> body) {
+        this.cfg = cfg;
+        this.header = header;
+        this.body = body;
+    }
+
+    /**
+     * Moves the invariant quads of the loop to a new preheader.
+     */
+    private void hoist() {
+        if (header.isExceptionHandlerEntry() || header.size() == 0)
+            return;
+        List<BasicBlock> entering = new ArrayList<BasicBlock>();
+        for (BasicBlock p : header.getPredecessors()) {
+            if (body.contains(p) || entering.contains(p))
+                continue;
+            // only gotos and conditional branches can be redirected
+            Quad last = p.getLastQuad();
+            if (last != null && last.getOperator() instanceof Operator.Branch
+                    && !(last.getOperator() instanceof Operator.Goto)
+                    && !(last.getOperator() instanceof Operator.IntIfCmp))
+                return;
+            entering.add(p);
+        }
+        if (entering.isEmpty())
+            return;
+
+        for (BasicBlock b : cfg.reversePostOrder(cfg.entry())) {
+            if (!body.contains(b))
+                continue;
+            order.add(b);
+            for (int i = 0; i < b.size(); i++) {
+                Quad q = b.getQuad(i);
+                inLoop.set(q.getID());
+                blockOf.put(q, b);
+                for (RegisterOperand def : q.getDefinedRegisters()) {
+                    String name = def.getRegister().toString();
+                    Integer n = numDefs.get(name);
+                    numDefs.put(name, n == null ? 1 : n + 1);
+                }
+            }
+        }
+        queries = new DemandQueries(cfg);
+
+        // the quads starting the header, which may throw unless a quad
+        // left in its place runs before them
+        boolean leftBehind = false;
+        for (int i = 0; i < header.size(); i++) {
+            Quad q = header.getQuad(i);
+            if (!neverThrows(q) && (leftBehind || !throwsFirst(q)))
+                break;
+            if (!choose(q))
+                break;
+            leftBehind |= !movedIDs.get(q.getID());
+        }
+        // the quads never throwing, in the whole loop
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : order)
+                for (int i = 0; i < b.size(); i++) {
+                    Quad q = b.getQuad(i);
+                    if (!isHoisted(q) && neverThrows(q) && choose(q))
+                        changed = true;
+                }
+        }
+        if (hoisted.isEmpty())
+            return;
+
+        // find the operands read from the new temps before moving anything
+        List<Register[]> sources = new ArrayList<Register[]>();
+        for (Quad q : hoisted)
+            sources.add(sources(q));
+        BasicBlock preheader = makePreheader(entering);
+        for (int i = 0; i < hoisted.size(); i++) {
+            Quad q = hoisted.get(i);
+            BasicBlock b = blockOf.get(q);
+            Quad copy = q;
+            if (movedIDs.get(q.getID())) {
+                b.removeQuad(q);
+            } else {
+                // compute into the holder, and leave a move from it
+                copy = q.copy(cfg.getNewQuadID());
+                RegisterOperand dest = copy.getDefinedRegisters().get(0);
+                Register holder = holders.get(q.getID());
+                b.replaceQuad(b.getQuadIndex(q), Operator.Move.create(q.getID(), Operator.Move.getMoveOp(dest.getType()),
+                        (RegisterOperand) dest.copy(), new RegisterOperand(holder, dest.getType())));
+                dest.setRegister(holder);
+            }
+            List<RegisterOperand> uses = copy.getUsedRegisters();
+            for (int j = 0; j < uses.size(); j++)
+                if (sources.get(i)[j] != null)
+                    uses.get(j).setRegister(sources.get(i)[j]);
+            preheader.appendQuad(copy);
+        }
+        AnalysisContext.invalidate(cfg);
+    }
+
+    private boolean isHoisted(Quad q) {
+        return movedIDs.get(q.getID()) || holders.containsKey(q.getID());
+    }
+
+    /**
+     * Hoists q if it is invariant, with its destination if it can, and
+     * returns true if it does.
+     */
+    private boolean choose(Quad q) {
+        if (!isInvariant(q))
+            return false;
+        if (isOnlyDefinition(q)) {
+            movedIDs.set(q.getID());
+        } else if (q.getOperator() instanceof Operator.Binary || q.getOperator() instanceof Operator.Unary
+                || q.getOperator() instanceof Operator.ALength) {
+            // a move from a new temp is no better than a move
+            RegisterOperand dest = q.getDefinedRegisters().get(0);
+            holders.put(q.getID(), cfg.getRegisterFactory().makeTempReg(dest.getType()));
+        } else {
+            return false;
+        }
+        hoisted.add(q);
+        return true;
+    }
+
+    /**
+     * Returns true if every definition reaching an operand of q in the
+     * loop is hoisted.  Guards are not values.
+     */
+    private boolean isInvariant(Quad q) {
+        for (RegisterOperand use : q.getUsedRegisters()) {
+            Register r = use.getRegister();
+            if (r.isGuard())
+                continue;
+            BitSet defs = queries.getReachingDefsIn(q, r.toString());
+            defs.and(inLoop);
+            defs.andNot(movedIDs);
+            if (!defs.isEmpty() && holderOf(defs, r) == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns by operand of q the new temp it reads instead, or null
+     * where it stays.
+     */
+    private Register[] sources(Quad q) {
+        List<RegisterOperand> uses = q.getUsedRegisters();
+        Register[] result = new Register[uses.size()];
+        for (int i = 0; i < result.length; i++) {
+            Register r = uses.get(i).getRegister();
+            if (r.isGuard())
+                continue;
+            BitSet defs = queries.getReachingDefsIn(q, r.toString());
+            defs.and(inLoop);
+            result[i] = holderOf(defs, r);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the temp holding the value of r where only the loop
+     * definitions defs of r reach, or null if there is none: defs must
+     * be a single quad computing into a temp, and r must not be live
+     * at the entry of the header, so that no value from before the
+     * loop reaches either.
+     */
+    private Register holderOf(BitSet defs, Register r) {
+        if (defs.cardinality() != 1 || queries.isLiveIn(header.getQuad(0), r.toString()))
+            return null;
+        return holders.get(defs.nextSetBit(0));
+    }
+
+    /**
+     * Returns true if q defines a register nothing else in the loop
+     * defines and that is not live at the entry of the header, or only
+     * a guard.
+     */
+    private boolean isOnlyDefinition(Quad q) {
+        for (RegisterOperand def : q.getDefinedRegisters()) {
+            Register r = def.getRegister();
+            if (r.isGuard())
+                continue;
+            String name = r.toString();
+            if (numDefs.get(name) != 1 || queries.isLiveIn(header.getQuad(0), name))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates a block running before the header on every edge from a
+     * block in entering, and falling through to the header.
+     */
+    private BasicBlock makePreheader(List<BasicBlock> entering) {
+        ExceptionHandlerList handlers = header.getExceptionHandlers();
+        BasicBlock preheader = cfg.createBasicBlock(entering.size(), 1, hoisted.size(),
+                handlers.isEmpty() ? null : handlers);
+        for (ExceptionHandler eh : handlers)
+            eh.getHandledBasicBlocks().add(preheader);
+        for (BasicBlock p : entering) {
+            List<BasicBlock> successors = p.getSuccessors();
+            for (int i = 0; i < successors.size(); i++)
+                if (successors.get(i) == header)
+                    successors.set(i, preheader);
+            Quad last = p.getLastQuad();
+            if (last != null && last.getOperator() instanceof Operator.Goto)
+                retarget(Operator.Goto.getTarget(last), preheader);
+            else if (last != null && last.getOperator() instanceof Operator.IntIfCmp)
+                retarget(Operator.IntIfCmp.getTarget(last), preheader);
+            while (header.removePredecessor(p))
+                ;
+            preheader.addPredecessor(p);
+        }
+        preheader.addSuccessor(header);
+        header.addPredecessor(preheader);
+        return preheader;
+    }
+
+    private void retarget(TargetOperand target, BasicBlock preheader) {
+        if (target.getTarget() == header)
+            target.setTarget(preheader);
+    }
+
+    /**
+     * Returns true if q never throws.
+     */
+    private static boolean neverThrows(Quad q) {
+        Operator op = q.getOperator();
+        if (op instanceof Operator.Move || op instanceof Operator.Unary)
+            return true;
+        if (!(op instanceof Operator.Binary))
+            return false;
+        if (op == Operator.Binary.DIV_I.INSTANCE || op == Operator.Binary.REM_I.INSTANCE) {
+            Operand divisor = Operator.Binary.getSrc2(q);
+            return divisor instanceof Operand.IConstOperand && ((Operand.IConstOperand) divisor).getValue() != 0;
+        }
+        if (op == Operator.Binary.DIV_L.INSTANCE || op == Operator.Binary.REM_L.INSTANCE) {
+            Operand divisor = Operator.Binary.getSrc2(q);
+            return divisor instanceof Operand.LConstOperand && ((Operand.LConstOperand) divisor).getValue() != 0;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if q may throw but can be hoisted when it runs first
+     * in the header.
+     */
+    private static boolean throwsFirst(Quad q) {
+        return q.getOperator() instanceof Operator.NullCheck || q.getOperator() instanceof Operator.ALength;
+    }
+}
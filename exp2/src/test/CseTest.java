@@ -0,0 +1,29 @@
+package test;
+
+public class CseTest {
+    public static int search(int[] a, int lo, int hi) {
+        int s = 0;
+        for (int k = 0; k < 40; k++) {
+            int m;
+            if ((k & 1) == 0) {
+                m = a[lo + (hi - lo) / 2];
+            } else {
+                m = (hi - lo) * 3;
+            }
+            s += m + (hi - lo) / 2 + lo * k + (lo + (hi - lo) / 2);
+            if (s > 1000) {
+                lo = lo + 1;
+            }
+            s -= lo * k;
+        }
+        return s;
+    }
+
+    public static void main(String[] args) {
+        int[] a = new int[64];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = i * 7 % 13;
+        }
+        System.out.println(search(a, Integer.parseInt(args[0]), 60));
+    }
+}
@@ -0,0 +1,43 @@
+package test;
+
+public class FoldTest {
+    public static int loop(int n) {
+        int step = 3, width = step * 4, s = 0;
+        boolean trace = width < 0;
+        for (int i = 0; i < n; i++) {
+            if (width > 10) {
+                s += i * width / step;
+            } else {
+                s -= 1;
+            }
+            if (trace) {
+                System.out.println(s);
+            }
+            int m = -width;
+            s ^= (m >>> 28) + (short) 70000 + (step << 2) % 5;
+        }
+        return s;
+    }
+
+    public static int branches(int x) {
+        int mode = 2, limit = mode * 50;
+        int r;
+        if (mode == 1) {
+            r = x + limit;
+        } else if (mode == 2) {
+            r = x - limit / 7;
+        } else {
+            r = 0;
+        }
+        if (limit < 100) {
+            r = -r;
+        }
+        return r * (limit % 9);
+    }
+
+    public static void main(String[] args) {
+        int n = Integer.parseInt(args[0]);
+        System.out.println(loop(n));
+        System.out.println(branches(n));
+    }
+}